@@ -77,6 +77,18 @@ android {
         // Disables dependency metadata when building Android App Bundles.
         includeInBundle = false
     }
+    testOptions {
+        unitTests {
+            all { test ->
+                test.systemProperty("simbadroid.benchmark", project.hasProperty("benchmark"))
+                listOf("warmup", "iterations", "iterationMs").forEach { name ->
+                    project.findProperty("benchmark.$name")?.let { value ->
+                        test.systemProperty("simbadroid.benchmark.$name", value)
+                    }
+                }
+            }
+        }
+    }
     compileOptions {
         isCoreLibraryDesugaringEnabled = true
         sourceCompatibility = JavaVersion.VERSION_16
@@ -23,7 +23,7 @@
 -dontobfuscate
 
 # JLANFileServer reflection usage from configuration file
--keep class org.filesys.debug.ConsoleDebug { public *; }
+-keep class de.buttercookie.simbadroid.jlan.RingBufferDebug { public *; }
 # MD4 via BouncyCastle needed for NTLM login
 -keep class org.bouncycastle.jcajce.provider.digest.MD4** { *; }
 # more JLANFileServer classes that need to be kept
@@ -12,6 +12,7 @@ import android.content.Intent;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.text.format.Formatter;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -29,13 +30,20 @@ import com.google.android.material.button.MaterialButton;
 import org.apache.commons.lang3.StringUtils;
 
 import de.buttercookie.simbadroid.databinding.ActivityMainBinding;
+import de.buttercookie.simbadroid.jlan.ServerMetrics;
 import de.buttercookie.simbadroid.permissions.Permissions;
 import de.buttercookie.simbadroid.service.SmbService;
 import de.buttercookie.simbadroid.service.SmbServiceConnection;
 import de.buttercookie.simbadroid.service.SmbServiceStatusLiveData;
+import de.buttercookie.simbadroid.util.ThreadUtils;
 
 public class MainActivity extends AppCompatActivity {
+    private static final long METRICS_REFRESH_INTERVAL_MS = 1000;
+
     private ActivityMainBinding binding;
+    private boolean mStarted = false;
+    private boolean mShowMetrics = false;
+    private final Runnable mMetricsUpdater = this::updateMetricsText;
 
     private SmbService mService;
     private boolean mBound = false;
@@ -65,6 +73,15 @@ public class MainActivity extends AppCompatActivity {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
             binding.toggleService.setAllowClickWhenDisabled(true);
         }
+        binding.directStorageAccess.setChecked(Settings.isDirectStorageAccessEnabled(this));
+        binding.directStorageAccess.setOnCheckedChangeListener((v, isChecked) -> {
+            Settings.setDirectStorageAccessEnabled(this, isChecked);
+            if (isChecked) {
+                Toast.makeText(this,
+                        R.string.toast_direct_storage_access,
+                        Toast.LENGTH_LONG).show();
+            }
+        });
 
         ViewCompat.setOnApplyWindowInsetsListener(findViewById(R.id.main), (v, insets) -> {
             Insets systemBars = insets.getInsets(WindowInsetsCompat.Type.systemBars());
@@ -75,6 +92,8 @@ public class MainActivity extends AppCompatActivity {
         SmbServiceStatusLiveData.get().observe(this, status -> {
             updateButtonState(status);
             updateStatusText(status);
+            mShowMetrics = status.serverRunning();
+            updateMetricsText();
         });
     }
 
@@ -84,6 +103,8 @@ public class MainActivity extends AppCompatActivity {
 
         Intent serviceIntent = new Intent(this, SmbService.class);
         bindService(serviceIntent, mSmbSrvConn, Context.BIND_AUTO_CREATE);
+        mStarted = true;
+        updateMetricsText();
     }
 
     @Override
@@ -92,10 +113,14 @@ public class MainActivity extends AppCompatActivity {
 
         unbindService(mSmbSrvConn);
         mBound = false;
+        mStarted = false;
+        ThreadUtils.removeCallbacksFromUiThread(mMetricsUpdater);
     }
 
     private void updateButtonState(SmbService.Status status) {
         final MaterialButton button = binding.toggleService;
+        // Settings are only applied when the server starts.
+        binding.directStorageAccess.setEnabled(!status.serviceRunning());
 
         if (status.serviceRunning()) {
             button.setText(R.string.button_stop_server);
@@ -127,6 +152,29 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    private void updateMetricsText() {
+        final TextView metricsText = binding.serverMetrics;
+        ThreadUtils.removeCallbacksFromUiThread(mMetricsUpdater);
+
+        if (!mShowMetrics) {
+            metricsText.setText(null);
+            return;
+        }
+
+        ServerMetrics.Snapshot metrics = ServerMetrics.get().snapshot();
+        StringBuilder text = new StringBuilder(getString(R.string.status_metrics,
+                metrics.sessions(), metrics.openFiles(), metrics.queueDepth()));
+        for (ServerMetrics.ShareStats share : metrics.shares()) {
+            text.append('\n').append(getString(R.string.status_metrics_share, share.name(),
+                    Formatter.formatShortFileSize(this, share.bytesRead()),
+                    Formatter.formatShortFileSize(this, share.bytesWritten())));
+        }
+        metricsText.setText(text);
+        if (mStarted) {
+            ThreadUtils.postDelayedToUiThread(mMetricsUpdater, METRICS_REFRESH_INTERVAL_MS);
+        }
+    }
+
     private void toggleSmbService() {
         if (!mBound) {
             Toast.makeText(this,
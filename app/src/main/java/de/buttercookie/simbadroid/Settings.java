@@ -0,0 +1,46 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * User settings of the file server. Changes take effect the next time the server is started.
+ */
+public class Settings {
+    private static final String PREFS_NAME = "settings";
+
+    // Serve shares from the file system below FUSE/sdcardfs where accessible, bypassing the
+    // media provider.
+    private static final String DIRECT_STORAGE_ACCESS = "direct_storage_access";
+    // Minimum size of page-aligned reads served through positional reads, 0 to disable. Only
+    // meant for tuning, so there is no UI for it.
+    private static final String DIRECT_READ_THRESHOLD = "direct_read_threshold";
+
+    private Settings() {}
+
+    public static boolean isDirectStorageAccessEnabled(Context context) {
+        return getPrefs(context).getBoolean(DIRECT_STORAGE_ACCESS,
+                context.getResources().getBoolean(R.bool.direct_storage_access));
+    }
+
+    public static void setDirectStorageAccessEnabled(Context context, boolean enabled) {
+        getPrefs(context).edit().putBoolean(DIRECT_STORAGE_ACCESS, enabled).apply();
+    }
+
+    public static int getDirectReadThreshold(Context context) {
+        return getPrefs(context).getInt(DIRECT_READ_THRESHOLD,
+                context.getResources().getInteger(R.integer.direct_read_threshold));
+    }
+
+    public static void setDirectReadThreshold(Context context, int threshold) {
+        getPrefs(context).edit().putInt(DIRECT_READ_THRESHOLD, threshold).apply();
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,287 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Announces the server to NetBIOS browsers, replacing JFileServer's host announcer, which keeps
+ * broadcasting at a fixed interval for as long as the server is running.
+ * <p>
+ * After starting up or moving to a new network, the first announcements are sent in quick
+ * succession, so that browsers pick up the server soon. The interval is then doubled with every
+ * announcement up to the maximum of twelve minutes allowed for browser announcements. Each
+ * announcement tells the browsers when to expect the next one, so they don't drop the server in
+ * the meantime.
+ * <p>
+ * If a source of browser activity is set, announcements are paused while no NetBIOS datagrams
+ * have been received for a while, as then there's most likely no browser around to listen to
+ * them. As soon as browser traffic shows up again, announcing resumes from the start.
+ */
+class AdaptiveHostAnnouncer {
+    private static final String LOGTAG = "HostAnnouncer";
+
+    private static final long INITIAL_INTERVAL_MS = 15 * 1000;
+    private static final long MAX_INTERVAL_MS = 12 * 60 * 1000;
+    // Without any browser traffic for this long, we stop announcing.
+    private static final long BROWSER_TIMEOUT_MS = 2 * MAX_INTERVAL_MS;
+    // How often to check for browser traffic while paused. Checking takes a root shell command,
+    // so this shouldn't wake us up more often than announcing would.
+    private static final long PAUSED_CHECK_INTERVAL_MS = MAX_INTERVAL_MS;
+
+    private static final int DATAGRAM_PORT = 138;
+    private static final int NETBIOS_NAME_LENGTH = 16;
+    private static final String BROWSE_MAILSLOT = "\\MAILSLOT\\BROWSE";
+    private static final int SV_TYPE_WORKSTATION = 0x00000001;
+    private static final int SV_TYPE_SERVER = 0x00000002;
+    private static final int SV_TYPE_NT = 0x00001000;
+
+    private final String mServerName;
+    private final String mDomainName;
+
+    private volatile InetAddress mBindAddress;
+    private volatile String mBroadcastAddress;
+    private volatile LongSupplier mBrowserActivity;
+
+    private ScheduledExecutorService mExecutor;
+    // Only accessed on the executor thread.
+    private long mInterval;
+    private long mLastActivityCount;
+    private long mLastActivityTime;
+    private boolean mPaused;
+    private short mDatagramId;
+
+    AdaptiveHostAnnouncer(String serverName, String domainName) {
+        mServerName = serverName;
+        mDomainName = domainName;
+    }
+
+    /**
+     * @param broadcastAddress The IPv4 broadcast address to send announcements to. If
+     *                         <code>null</code>, nothing is announced.
+     */
+    void setAddress(InetAddress bindAddress, @Nullable String broadcastAddress) {
+        mBindAddress = bindAddress;
+        mBroadcastAddress = broadcastAddress;
+    }
+
+    /**
+     * @param browserActivity Returns a counter of received NetBIOS datagrams, or a negative value
+     *                        if unknown. Called on a background thread.
+     */
+    void setBrowserActivitySource(@Nullable LongSupplier browserActivity) {
+        mBrowserActivity = browserActivity;
+    }
+
+    synchronized void start() {
+        if (mExecutor == null) {
+            schedule();
+        }
+    }
+
+    /**
+     * Start over with quick announcements, e.g. after a network change.
+     */
+    synchronized void restart() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            schedule();
+        }
+    }
+
+    synchronized void stop() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    private void schedule() {
+        mExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("SimbaHostAnnouncer-%d")
+                        .setDaemon(true)
+                        .build());
+        final ScheduledExecutorService executor = mExecutor;
+        executor.execute(() -> {
+            mInterval = INITIAL_INTERVAL_MS;
+            mLastActivityCount = readActivityCount();
+            mLastActivityTime = SystemClock.elapsedRealtime();
+            mPaused = false;
+            tick(executor);
+        });
+    }
+
+    private void tick(ScheduledExecutorService executor) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long count = readActivityCount();
+        if (count < 0 || count != mLastActivityCount) {
+            mLastActivityCount = count;
+            mLastActivityTime = now;
+            if (mPaused) {
+                Log.i(LOGTAG, "Browser traffic seen, resuming host announcements");
+                mPaused = false;
+                mInterval = INITIAL_INTERVAL_MS;
+            }
+        } else if (!mPaused && now - mLastActivityTime > BROWSER_TIMEOUT_MS) {
+            Log.i(LOGTAG, "No browser traffic seen, pausing host announcements");
+            mPaused = true;
+        }
+
+        long delay;
+        if (mPaused) {
+            delay = PAUSED_CHECK_INTERVAL_MS;
+        } else {
+            delay = mInterval;
+            mInterval = Math.min(mInterval * 2, MAX_INTERVAL_MS);
+            announce(delay);
+        }
+        try {
+            executor.schedule(() -> tick(executor), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {
+            // Stopped or restarted in the meantime.
+        }
+    }
+
+    private long readActivityCount() {
+        LongSupplier browserActivity = mBrowserActivity;
+        return browserActivity != null ? browserActivity.getAsLong() : -1;
+    }
+
+    private void announce(long periodicity) {
+        InetAddress bindAddress = mBindAddress;
+        String broadcastAddress = mBroadcastAddress;
+        if (!(bindAddress instanceof Inet4Address) || broadcastAddress == null) {
+            return;
+        }
+
+        byte[] datagram = buildAnnouncement(bindAddress, periodicity);
+        try (DatagramSocket socket = new DatagramSocket(new InetSocketAddress(bindAddress, 0))) {
+            socket.setBroadcast(true);
+            socket.send(new DatagramPacket(datagram, datagram.length,
+                    InetAddress.getByName(broadcastAddress), DATAGRAM_PORT));
+            Log.d(LOGTAG, "Announced " + mServerName + ", next in " + periodicity + " ms");
+        } catch (IOException e) {
+            Log.d(LOGTAG, "Error sending host announcement", e);
+        }
+    }
+
+    /**
+     * Build a browser HostAnnouncement frame, wrapped in an SMB mailslot write to
+     * \MAILSLOT\BROWSE, wrapped in a NetBIOS direct group datagram to the domain's master
+     * browser name.
+     */
+    private byte[] buildAnnouncement(InetAddress source, long periodicity) {
+        byte[] comment = new byte[1];
+        ByteBuffer announcement = ByteBuffer.allocate(32 + comment.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        announcement.put((byte) 1); // HostAnnouncement
+        announcement.put((byte) 0); // Update count
+        announcement.putInt((int) periodicity);
+        announcement.put(paddedName(mServerName, NETBIOS_NAME_LENGTH));
+        announcement.put((byte) 6); // OS version
+        announcement.put((byte) 1);
+        announcement.putInt(SV_TYPE_WORKSTATION | SV_TYPE_SERVER | SV_TYPE_NT);
+        announcement.put((byte) 15); // Browser protocol version
+        announcement.put((byte) 1);
+        announcement.putShort((short) 0xAA55);
+        announcement.put(comment);
+
+        byte[] mailslot = (BROWSE_MAILSLOT + "\0").getBytes(StandardCharsets.US_ASCII);
+        int dataOffset = 32 + 1 + 17 * 2 + 2 + mailslot.length;
+        ByteBuffer smb = ByteBuffer.allocate(dataOffset + announcement.capacity())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        smb.put(new byte[] {(byte) 0xFF, 'S', 'M', 'B', 0x25}); // SMB_COM_TRANSACTION
+        smb.position(32);
+        smb.put((byte) 17); // Word count
+        smb.putShort((short) 0); // Total parameter count
+        smb.putShort((short) announcement.capacity()); // Total data count
+        smb.putShort((short) 0); // Max parameter count
+        smb.putShort((short) 0); // Max data count
+        smb.putShort((short) 0); // Max setup count
+        smb.putShort((short) 0); // Flags
+        smb.putInt(0); // Timeout
+        smb.putShort((short) 0);
+        smb.putShort((short) 0); // Parameter count
+        smb.putShort((short) dataOffset); // Parameter offset
+        smb.putShort((short) announcement.capacity()); // Data count
+        smb.putShort((short) dataOffset); // Data offset
+        smb.putShort((short) 3); // Setup count
+        smb.putShort((short) 1); // Mailslot write
+        smb.putShort((short) 1); // Priority
+        smb.putShort((short) 2); // Unreliable/broadcast
+        smb.putShort((short) (mailslot.length + announcement.capacity())); // Byte count
+        smb.put(mailslot);
+        smb.put(announcement.array());
+
+        byte[] sourceName = encodeName(mServerName, (byte) 0x00);
+        byte[] destinationName = encodeName(mDomainName, (byte) 0x1D);
+        int length = sourceName.length + destinationName.length + smb.capacity();
+        ByteBuffer datagram = ByteBuffer.allocate(14 + length).order(ByteOrder.BIG_ENDIAN);
+        datagram.put((byte) 0x11); // Direct group datagram
+        datagram.put((byte) 0x02); // First fragment, B node
+        datagram.putShort(mDatagramId++);
+        datagram.put(source.getAddress());
+        datagram.putShort((short) DATAGRAM_PORT);
+        datagram.putShort((short) length);
+        datagram.putShort((short) 0); // Packet offset
+        datagram.put(sourceName);
+        datagram.put(destinationName);
+        datagram.put(smb.array());
+        return datagram.array();
+    }
+
+    private static byte[] paddedName(String name, int length) {
+        byte[] padded = new byte[length];
+        byte[] bytes = name.toUpperCase(Locale.ROOT).getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, padded, 0, Math.min(bytes.length, length - 1));
+        return padded;
+    }
+
+    /**
+     * First-level encoding of a NetBIOS name as per RFC 1001, without any scope.
+     */
+    private static byte[] encodeName(String name, byte suffix) {
+        byte[] padded = paddedName(name, NETBIOS_NAME_LENGTH);
+        for (int i = 0; i < NETBIOS_NAME_LENGTH - 1; i++) {
+            if (padded[i] == 0) {
+                padded[i] = ' ';
+            }
+        }
+        padded[NETBIOS_NAME_LENGTH - 1] = suffix;
+
+        byte[] encoded = new byte[2 + 2 * NETBIOS_NAME_LENGTH];
+        encoded[0] = 2 * NETBIOS_NAME_LENGTH;
+        for (int i = 0; i < NETBIOS_NAME_LENGTH; i++) {
+            encoded[1 + 2 * i] = (byte) ('A' + ((padded[i] >> 4) & 0x0F));
+            encoded[2 + 2 * i] = (byte) ('A' + (padded[i] & 0x0F));
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,194 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Chooses the buffer sizes and allocation limits of the SMB packet memory pool, based on the
+ * concurrency of the file I/O requests passing through {@link SimbaDiskDriver}.
+ * <p>
+ * JFileServer's pool doesn't expose any statistics, so these are estimates: for every read or
+ * write we work out the packet size needed to carry it and count how many requests of the
+ * smallest bucket it fits into are in flight at the same time. The request is then classified
+ * as
+ * <ul>
+ *     <li><b>within initial</b> - no more requests in flight than the bucket's initial buffer
+ *     count</li>
+ *     <li><b>beyond initial</b> - more than that, but no more than the maximum buffer count</li>
+ *     <li><b>beyond maximum</b> - the request was larger than the largest bucket, or more
+ *     requests than the maximum buffer count were in flight</li>
+ * </ul>
+ * Other SMB traffic isn't visible from the driver, so the actual pool usage is higher.
+ * In {@link Mode#ADAPTIVE} mode, the observed peak concurrency per bucket is used to resize the
+ * allocation limits the next time a pool is created, i.e. on the next server start. The peak is
+ * restarted with every adaptation and earlier peaks are halved each time, so limits shrink again
+ * once a burst of concurrent requests is over.
+ */
+class AdaptiveMemoryPoolPolicy {
+    private static final String LOGTAG = "MemoryPoolPolicy";
+
+    public enum Mode {
+        /** Always use the default bucket limits and don't track concurrency. */
+        FIXED,
+        /** Track concurrency and adapt bucket limits on the next pool creation. */
+        ADAPTIVE,
+    }
+
+    // Space for the NetBIOS and SMB headers and the parameter block preceding the data of a
+    // READ_ANDX response respectively WRITE_ANDX request.
+    private static final int IO_PACKET_OVERHEAD = 128;
+    // Large read and write requests (CAP_LARGE_READX/CAP_LARGE_WRITEX) can exceed 64 kB.
+    private static final int LARGE_IO_BUFFER_SIZE = 128 * 1024 + IO_PACKET_OVERHEAD;
+
+    private static final int[] DefaultBufSizes = {256, 4096, 16384, 66000, LARGE_IO_BUFFER_SIZE};
+    // Large I/O buffers are only allocated on demand, as not every client uses large reads and
+    // writes.
+    private static final int[] DefaultInitAlloc = {20, 20, 5, 5, 0};
+    private static final int[] DefaultMaxAlloc = {100, 50, 50, 50, 16};
+    // Upper limit for adapted maximum buffer counts, to keep large buckets from getting out of hand
+    // on memory-constrained devices.
+    private static final int[] LimitMaxAlloc = {200, 100, 100, 64, 32};
+    // Lower limit for adapted maximum buffer counts, leaving room for the SMB traffic that doesn't
+    // pass through the driver.
+    private static final int[] MinMaxAlloc = {50, 25, 8, 8, 4};
+
+    public record BucketEstimate(int bufferSize, long withinInitial, long beyondInitial,
+                                 long beyondMax, int peakInFlight) {
+    }
+
+    // Counts are kept for the lifetime of the process, so that the next pool can be sized
+    // based on what previous server runs have observed.
+    private static final AtomicLongArray sWithinInitial =
+            new AtomicLongArray(DefaultBufSizes.length);
+    private static final AtomicLongArray sBeyondInitial =
+            new AtomicLongArray(DefaultBufSizes.length);
+    private static final AtomicLongArray sBeyondMax =
+            new AtomicLongArray(DefaultBufSizes.length + 1);
+    private static final AtomicIntegerArray sInUse =
+            new AtomicIntegerArray(DefaultBufSizes.length);
+    private static final AtomicIntegerArray sPeakInUse =
+            new AtomicIntegerArray(DefaultBufSizes.length);
+    // Peak concurrency the limits were last adapted to, decaying with every adaptation.
+    private static final int[] sAdaptedPeak = new int[DefaultBufSizes.length];
+
+    private final Mode mMode;
+    private final int[] mInitAlloc;
+    private final int[] mMaxAlloc;
+
+    AdaptiveMemoryPoolPolicy(Mode mode) {
+        mMode = mode;
+        mInitAlloc = DefaultInitAlloc.clone();
+        mMaxAlloc = DefaultMaxAlloc.clone();
+        if (mode == Mode.ADAPTIVE) {
+            adaptLimits();
+        }
+    }
+
+    int[] getBufferSizes() {
+        return DefaultBufSizes.clone();
+    }
+
+    int[] getInitialAllocations() {
+        return mInitAlloc.clone();
+    }
+
+    int[] getMaximumAllocations() {
+        return mMaxAlloc.clone();
+    }
+
+    /**
+     * Record the start of a file I/O request carrying <code>dataLength</code> bytes.
+     *
+     * @return A token that must be passed to {@link #releaseIo(int)} once the request has
+     *         completed.
+     */
+    int acquireIo(int dataLength) {
+        if (mMode != Mode.ADAPTIVE) {
+            return -1;
+        }
+
+        int bucket = findBucket(dataLength + IO_PACKET_OVERHEAD);
+        if (bucket < 0) {
+            sBeyondMax.incrementAndGet(DefaultBufSizes.length);
+            return -1;
+        }
+
+        int inUse = sInUse.incrementAndGet(bucket);
+        updatePeak(bucket, inUse);
+        if (inUse <= mInitAlloc[bucket]) {
+            sWithinInitial.incrementAndGet(bucket);
+        } else if (inUse <= mMaxAlloc[bucket]) {
+            sBeyondInitial.incrementAndGet(bucket);
+        } else {
+            sBeyondMax.incrementAndGet(bucket);
+        }
+        return bucket;
+    }
+
+    void releaseIo(int token) {
+        if (token >= 0) {
+            sInUse.decrementAndGet(token);
+        }
+    }
+
+    /**
+     * @return Estimated usage of each bucket, followed by one entry with a buffer size of
+     *         {@link Integer#MAX_VALUE} counting requests too large for any bucket.
+     */
+    static BucketEstimate[] getEstimates() {
+        BucketEstimate[] estimates = new BucketEstimate[DefaultBufSizes.length + 1];
+        for (int i = 0; i < DefaultBufSizes.length; i++) {
+            estimates[i] = new BucketEstimate(DefaultBufSizes[i], sWithinInitial.get(i),
+                    sBeyondInitial.get(i), sBeyondMax.get(i), sPeakInUse.get(i));
+        }
+        estimates[DefaultBufSizes.length] = new BucketEstimate(Integer.MAX_VALUE, 0, 0,
+                sBeyondMax.get(DefaultBufSizes.length), 0);
+        return estimates;
+    }
+
+    private static void updatePeak(int bucket, int inUse) {
+        int peak;
+        do {
+            peak = sPeakInUse.get(bucket);
+        } while (inUse > peak && !sPeakInUse.compareAndSet(bucket, peak, inUse));
+    }
+
+    private static int findBucket(int size) {
+        for (int i = 0; i < DefaultBufSizes.length; i++) {
+            if (size <= DefaultBufSizes[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void adaptLimits() {
+        synchronized (sAdaptedPeak) {
+            for (int i = 0; i < DefaultBufSizes.length; i++) {
+                // Start a new observation period, carrying over only the requests still in flight.
+                int peak = sPeakInUse.getAndSet(i, sInUse.get(i));
+                peak = Math.max(peak, sAdaptedPeak[i] / 2);
+                sAdaptedPeak[i] = peak;
+                if (peak == 0) {
+                    // Nothing observed (or the bucket is only used for non-I/O requests which we
+                    // can't see from the driver), so stick with the defaults.
+                    continue;
+                }
+                // Pre-allocate what was needed at peak and leave twice that as headroom.
+                mMaxAlloc[i] = Math.max(MinMaxAlloc[i], Math.min(peak * 2, LimitMaxAlloc[i]));
+                mInitAlloc[i] = Math.min(peak, mMaxAlloc[i]);
+            }
+        }
+        Log.i(LOGTAG, "Memory pool sizes adapted to estimated I/O concurrency " +
+                Arrays.toString(DefaultBufSizes) +
+                ", initial " + Arrays.toString(mInitAlloc) +
+                ", max " + Arrays.toString(mMaxAlloc));
+    }
+}
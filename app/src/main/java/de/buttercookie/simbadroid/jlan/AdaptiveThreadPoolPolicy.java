@@ -0,0 +1,173 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import org.filesys.server.thread.ThreadRequestPool;
+
+import java.util.Locale;
+
+import de.buttercookie.simbadroid.util.ThreadUtils;
+
+/**
+ * Sizes the SMB worker thread pool from the number of available cores and adapts that size to
+ * the request queue depth observed while the server is running.
+ * <p>
+ * JFileServer's {@link ThreadRequestPool} can't add or remove workers once it has been created,
+ * so adjustments made while monitoring are remembered for the lifetime of the process and applied
+ * the next time a pool is created.
+ */
+class AdaptiveThreadPoolPolicy {
+    private static final String LOGTAG = "ThreadPoolPolicy";
+
+    private static final int MIN_THREADS = 4;
+    private static final int MAX_THREADS = 32;
+    private static final int THREADS_PER_CORE = 4;
+
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+    private static final int SAMPLES_PER_DECISION = 30;
+    // Average number of queued requests per sample above which we consider the pool too small.
+    private static final double GROW_QUEUE_DEPTH = 1.0;
+
+    public enum Action {
+        GROW,
+        SHRINK,
+        KEEP,
+    }
+
+    public record Decision(Action action, int oldSize, int newSize, double avgQueueDepth,
+                           int peakQueueDepth) {
+    }
+
+    // The pool size we'd like to use the next time a pool is created.
+    private static int sRecommendedSize;
+    private static Decision sLastDecision;
+
+    private final int mBaseSize;
+    private final int mMaxSize;
+    private final int mStep;
+    private final int mInitialSize;
+
+    private ThreadRequestPool mPool;
+    private Runnable mSampleRunnable;
+    private int mSamples;
+    private long mQueueDepthSum;
+    private int mPeakQueueDepth;
+
+    AdaptiveThreadPoolPolicy() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    AdaptiveThreadPoolPolicy(int cores) {
+        mBaseSize = clamp(cores + 2, MIN_THREADS, MAX_THREADS);
+        mMaxSize = clamp(cores * THREADS_PER_CORE, mBaseSize, MAX_THREADS);
+        mStep = Math.max(1, cores / 2);
+        synchronized (AdaptiveThreadPoolPolicy.class) {
+            mInitialSize = sRecommendedSize > 0 ?
+                    clamp(sRecommendedSize, mBaseSize, mMaxSize) : mBaseSize;
+        }
+        Log.i(LOGTAG, "Using " + mInitialSize + " worker threads for " + cores +
+                " cores (base " + mBaseSize + ", max " + mMaxSize + ")");
+    }
+
+    int getInitialSize() {
+        return mInitialSize;
+    }
+
+    int getMaximumSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return The most recent sizing decision taken by any policy instance, or <code>null</code>
+     *         if the queue hasn't been monitored for long enough yet.
+     */
+    @Nullable
+    static synchronized Decision getLastDecision() {
+        return sLastDecision;
+    }
+
+    static synchronized int getRecommendedSize() {
+        return sRecommendedSize;
+    }
+
+    /**
+     * Start periodically sampling the request queue of the given pool.
+     */
+    void startMonitoring(ThreadRequestPool pool) {
+        ThreadUtils.postToBackgroundThread(() -> {
+            if (mSampleRunnable != null) {
+                return;
+            }
+            mPool = pool;
+            resetSamples();
+            mSampleRunnable = this::sample;
+            ThreadUtils.postDelayedToBackgroundThread(mSampleRunnable, SAMPLE_INTERVAL_MS);
+        });
+    }
+
+    void stopMonitoring() {
+        ThreadUtils.postToBackgroundThread(() -> {
+            if (mSampleRunnable != null) {
+                ThreadUtils.getBackgroundHandler().removeCallbacks(mSampleRunnable);
+                mSampleRunnable = null;
+            }
+            mPool = null;
+        });
+    }
+
+    private void sample() {
+        if (mSampleRunnable == null || mPool == null) {
+            return;
+        }
+
+        int queueDepth = mPool.getNumberOfRequests();
+        mQueueDepthSum += queueDepth;
+        mPeakQueueDepth = Math.max(mPeakQueueDepth, queueDepth);
+        mSamples++;
+        if (mSamples >= SAMPLES_PER_DECISION) {
+            decide((double) mQueueDepthSum / mSamples, mPeakQueueDepth);
+            resetSamples();
+        }
+
+        ThreadUtils.postDelayedToBackgroundThread(mSampleRunnable, SAMPLE_INTERVAL_MS);
+    }
+
+    private void resetSamples() {
+        mSamples = 0;
+        mQueueDepthSum = 0;
+        mPeakQueueDepth = 0;
+    }
+
+    private void decide(double avgQueueDepth, int peakQueueDepth) {
+        synchronized (AdaptiveThreadPoolPolicy.class) {
+            int oldSize = sRecommendedSize > 0 ? sRecommendedSize : mInitialSize;
+            int newSize = oldSize;
+            Action action = Action.KEEP;
+            if (avgQueueDepth > GROW_QUEUE_DEPTH && oldSize < mMaxSize) {
+                newSize = Math.min(oldSize + mStep, mMaxSize);
+                action = Action.GROW;
+            } else if (peakQueueDepth == 0 && oldSize > mBaseSize) {
+                newSize = Math.max(oldSize - mStep, mBaseSize);
+                action = Action.SHRINK;
+            }
+
+            sRecommendedSize = newSize;
+            sLastDecision = new Decision(action, oldSize, newSize, avgQueueDepth, peakQueueDepth);
+            if (action != Action.KEEP) {
+                Log.i(LOGTAG, "Worker pool " + action + " " + oldSize + " -> " + newSize +
+                        " (avg queue " + String.format(Locale.ROOT, "%.2f", avgQueueDepth) +
+                        ", peak " + peakQueueDepth + "), applied on next server start");
+            }
+        }
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(value, max));
+    }
+}
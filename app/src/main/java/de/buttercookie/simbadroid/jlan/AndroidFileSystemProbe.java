@@ -0,0 +1,100 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.os.StatFs;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+class AndroidFileSystemProbe implements FileSystemProbe {
+    private static final String LOGTAG = "AndroidFileSystemProbe";
+
+    private static final String MOUNTS = "/proc/self/mounts";
+    // File systems passing through to another file system mounted elsewhere.
+    private static final Set<String> STACKED_FILE_SYSTEMS =
+            new HashSet<>(Arrays.asList("fuse", "sdcardfs", "esdfs"));
+
+    @Override
+    public SpaceInfo getSpaceInfo(String path) {
+        StatFs statFs = new StatFs(path);
+        return new SpaceInfo(statFs.getBlockSizeLong(), statFs.getBlockCountLong(),
+                statFs.getAvailableBlocksLong());
+    }
+
+    @Override
+    public long getDeviceId(String path) throws IOException {
+        try {
+            return Os.stat(path).st_dev;
+        } catch (ErrnoException e) {
+            throw new IOException("stat failed for " + path, e);
+        }
+    }
+
+    @Nullable
+    @Override
+    public String getFileSystemType(String path) {
+        String canonicalPath;
+        try {
+            canonicalPath = new File(path).getCanonicalPath();
+        } catch (IOException e) {
+            return null;
+        }
+
+        String type = findMountType(canonicalPath);
+        if (type != null && STACKED_FILE_SYSTEMS.contains(type)) {
+            LowerFsPaths.Mapping mapping = LowerFsPaths.getMapping(canonicalPath);
+            if (mapping != null) {
+                String lowerType = findMountType(mapping.apply(canonicalPath));
+                if (lowerType != null) {
+                    type = lowerType;
+                }
+            }
+        }
+        return type;
+    }
+
+    /**
+     * @return The type of the mount with the longest mount point containing the given path.
+     */
+    @Nullable
+    private static String findMountType(String path) {
+        String bestMountPoint = null;
+        String bestType = null;
+        try (BufferedReader reader = new BufferedReader(new FileReader(MOUNTS))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length < 3) {
+                    continue;
+                }
+                String mountPoint = fields[1].replace("\\040", " ");
+                if (isPathBelow(path, mountPoint) && (bestMountPoint == null ||
+                        mountPoint.length() >= bestMountPoint.length())) {
+                    bestMountPoint = mountPoint;
+                    bestType = fields[2];
+                }
+            }
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Couldn't read " + MOUNTS, e);
+        }
+        return bestType;
+    }
+
+    private static boolean isPathBelow(String path, String mountPoint) {
+        return mountPoint.equals("/") || path.equals(mountPoint) ||
+                path.startsWith(mountPoint + "/");
+    }
+}
@@ -0,0 +1,57 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+
+/**
+ * A bounded pool of equally sized byte arrays.
+ */
+class BufferPool {
+    private final int mBufferSize;
+    private final int mMaxBuffers;
+    private final int mMaxPooledBuffers;
+    private final ArrayDeque<byte[]> mPool = new ArrayDeque<>();
+    private int mBuffersInUse;
+
+    /**
+     * @param maxBuffers       Maximum number of buffers handed out at the same time.
+     * @param maxPooledBuffers Maximum number of idle buffers kept for reuse.
+     */
+    BufferPool(int bufferSize, int maxBuffers, int maxPooledBuffers) {
+        mBufferSize = bufferSize;
+        mMaxBuffers = maxBuffers;
+        mMaxPooledBuffers = maxPooledBuffers;
+    }
+
+    int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * @return A buffer, or <code>null</code> if the maximum number of buffers is already in use.
+     */
+    @Nullable
+    synchronized byte[] acquire() {
+        byte[] buffer = mPool.pollFirst();
+        if (buffer == null) {
+            if (mBuffersInUse >= mMaxBuffers) {
+                return null;
+            }
+            buffer = new byte[mBufferSize];
+        }
+        mBuffersInUse++;
+        return buffer;
+    }
+
+    synchronized void release(byte[] buffer) {
+        mBuffersInUse--;
+        if (mPool.size() < mMaxPooledBuffers) {
+            mPool.addFirst(buffer);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.os.Build;
+import android.os.FileObserver;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.filesys.server.filesys.FileName;
+import org.filesys.server.filesys.NotifyAction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the directories clients are looking at for changes made outside of the SMB server,
+ * e.g. by other apps, so that they can be reported to clients waiting on change notifications.
+ * <p>
+ * A client can only subscribe to change notifications for a directory it has opened, so a
+ * directory is watched for as long as any client holds an open handle to it, rather than for
+ * every directory that is merely listed. Each session can have at most
+ * {@link #MAX_DIRS_PER_SESSION} directory handles watched, and each share watches at most
+ * {@link #MAX_DIRS} directories overall; further handles simply go unwatched. All watches of a
+ * session are released once it closes.
+ * <p>
+ * Events are collected in a bounded queue which merges repeated events for the same file and
+ * is delivered in batches. If the queue overflows, the individual events are dropped and the
+ * affected directories are reported as modified as a whole instead. Changes made through the
+ * server itself are already reported by JFileServer and are therefore ignored.
+ */
+class ChangeWatcher {
+    private static final String LOGTAG = "ChangeWatcher";
+
+    private static final int MAX_DIRS = 128;
+    private static final int MAX_DIRS_PER_SESSION = 16;
+    private static final int MAX_QUEUED_EVENTS = 512;
+    private static final long BATCH_DELAY_MS = 100;
+    // Events for paths changed through the server within this time are ignored.
+    private static final long OWN_CHANGE_WINDOW_MS = 2000;
+
+    private static final int EVENT_MASK = FileObserver.CREATE | FileObserver.DELETE |
+            FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE |
+            FileObserver.ATTRIB | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private static ScheduledExecutorService sExecutor;
+
+    interface Listener {
+        /**
+         * Called for every change made outside of the server.
+         *
+         * @param path The changed file or directory within the share.
+         */
+        void onExternalChange(NotifyAction action, String path, boolean isDirectory);
+    }
+
+    private record Event(NotifyAction action, String path, boolean isDirectory) {
+    }
+
+    private final String mRoot;
+    private final boolean mCaseInsensitive;
+    private final Listener mListener;
+    private final Cache<String, Boolean> mOwnChanges;
+
+    // Watched directories by normalised path.
+    private final Map<String, Watch> mWatches = new HashMap<>();
+    // The normalised paths of the directory handles each session holds open, once per handle.
+    private final Map<Integer, List<String>> mSessionHandles = new HashMap<>();
+
+    private final LinkedHashMap<String, Event> mQueue = new LinkedHashMap<>();
+    private final Set<String> mOverflowedDirs = new LinkedHashSet<>();
+    private boolean mBatchScheduled;
+    private boolean mClosed;
+
+    ChangeWatcher(String root, boolean caseInsensitive, Listener listener) {
+        mRoot = root;
+        mCaseInsensitive = caseInsensitive;
+        mListener = listener;
+        mOwnChanges = CacheBuilder.newBuilder()
+                .maximumSize(4096)
+                .expireAfterWrite(OWN_CHANGE_WINDOW_MS, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Start watching a directory a session has opened a handle to, unless the directory is
+     * already being watched for another handle.
+     */
+    synchronized void onDirectoryOpened(int sessionId, String dirPath) {
+        if (mClosed) {
+            return;
+        }
+        List<String> handles = mSessionHandles.get(sessionId);
+        if (handles != null && handles.size() >= MAX_DIRS_PER_SESSION) {
+            return;
+        }
+        String key = SharePath.normalize(dirPath, mCaseInsensitive);
+        Watch watch = mWatches.get(key);
+        if (watch == null) {
+            if (mWatches.size() >= MAX_DIRS) {
+                return;
+            }
+            File dir = new File(FileName.buildPath(mRoot, dirPath, null, File.separatorChar));
+            watch = new Watch(createObserver(dir, dirPath));
+            watch.mObserver.startWatching();
+            mWatches.put(key, watch);
+        }
+        watch.mHandles++;
+        if (handles == null) {
+            handles = new ArrayList<>();
+            mSessionHandles.put(sessionId, handles);
+        }
+        handles.add(key);
+    }
+
+    /**
+     * Stop watching a directory once the last handle to it has been closed.
+     */
+    synchronized void onDirectoryClosed(int sessionId, String dirPath) {
+        List<String> handles = mSessionHandles.get(sessionId);
+        String key = SharePath.normalize(dirPath, mCaseInsensitive);
+        if (handles == null || !handles.remove(key)) {
+            // Not watched in the first place.
+            return;
+        }
+        if (handles.isEmpty()) {
+            mSessionHandles.remove(sessionId);
+        }
+        release(key);
+    }
+
+    /**
+     * Release all watches for directory handles the session still held open.
+     */
+    synchronized void onSessionClosed(int sessionId) {
+        List<String> handles = mSessionHandles.remove(sessionId);
+        if (handles != null) {
+            for (String key : handles) {
+                release(key);
+            }
+        }
+    }
+
+    /**
+     * Record a change made through the server, so that the resulting events can be ignored.
+     */
+    void onOwnChange(String path) {
+        mOwnChanges.put(SharePath.normalize(path, mCaseInsensitive), Boolean.TRUE);
+    }
+
+    synchronized void close() {
+        mClosed = true;
+        for (Watch watch : mWatches.values()) {
+            watch.mObserver.stopWatching();
+        }
+        mWatches.clear();
+        mSessionHandles.clear();
+        mQueue.clear();
+        mOverflowedDirs.clear();
+    }
+
+    private void release(String key) {
+        Watch watch = mWatches.get(key);
+        if (watch != null && --watch.mHandles <= 0) {
+            watch.mObserver.stopWatching();
+            mWatches.remove(key);
+        }
+    }
+
+    private void onEvent(String dirPath, int event, @Nullable String name) {
+        event &= FileObserver.ALL_EVENTS;
+        if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+            enqueue(new Event(NotifyAction.Removed, dirPath, true));
+            return;
+        }
+        if (name == null) {
+            return;
+        }
+
+        String path = SharePath.child(dirPath, name);
+        if (mOwnChanges.getIfPresent(SharePath.normalize(path, mCaseInsensitive)) != null) {
+            return;
+        }
+        boolean isDirectory = new File(
+                FileName.buildPath(mRoot, path, null, File.separatorChar)).isDirectory();
+        NotifyAction action;
+        if ((event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0) {
+            action = NotifyAction.Added;
+        } else if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0) {
+            action = NotifyAction.Removed;
+        } else if ((event & (FileObserver.CLOSE_WRITE | FileObserver.ATTRIB)) != 0) {
+            action = NotifyAction.Modified;
+        } else {
+            return;
+        }
+        enqueue(new Event(action, path, isDirectory));
+    }
+
+    private synchronized void enqueue(Event event) {
+        if (mClosed) {
+            return;
+        }
+        String dirKey = SharePath.normalize(SharePath.parentOf(event.path()), mCaseInsensitive);
+        if (mOverflowedDirs.contains(dirKey)) {
+            return;
+        }
+        if (mQueue.size() >= MAX_QUEUED_EVENTS) {
+            // Give up on individual events for this directory.
+            Iterator<Event> queued = mQueue.values().iterator();
+            while (queued.hasNext()) {
+                Event e = queued.next();
+                if (SharePath.normalize(SharePath.parentOf(e.path()), mCaseInsensitive)
+                        .equals(dirKey)) {
+                    queued.remove();
+                }
+            }
+            mOverflowedDirs.add(dirKey);
+        } else {
+            // A later event for the same file replaces the earlier one, but moves to the end of
+            // the queue to keep the order of events for different files intact.
+            String key = event.action() + ":" +
+                    SharePath.normalize(event.path(), mCaseInsensitive);
+            mQueue.remove(key);
+            mQueue.put(key, event);
+        }
+
+        if (!mBatchScheduled) {
+            mBatchScheduled = true;
+            getExecutor().schedule(this::deliver, BATCH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void deliver() {
+        List<Event> events;
+        List<String> overflowedDirs;
+        synchronized (this) {
+            mBatchScheduled = false;
+            events = new ArrayList<>(mQueue.values());
+            overflowedDirs = new ArrayList<>(mOverflowedDirs);
+            mQueue.clear();
+            mOverflowedDirs.clear();
+        }
+
+        for (String dir : overflowedDirs) {
+            mListener.onExternalChange(NotifyAction.Modified, dir, true);
+        }
+        for (Event event : events) {
+            try {
+                mListener.onExternalChange(event.action(), event.path(), event.isDirectory());
+            } catch (RuntimeException e) {
+                Log.w(LOGTAG, "Error delivering change notification for " + event.path(), e);
+            }
+        }
+    }
+
+    private DirObserver createObserver(File dir, String dirPath) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return new DirObserver(dir, dirPath);
+        } else {
+            return new DirObserver(dir.getAbsolutePath(), dirPath);
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("SimbaChangeWatcher-%d")
+                            .setDaemon(true)
+                            .build());
+        }
+        return sExecutor;
+    }
+
+    private static class Watch {
+        private final DirObserver mObserver;
+        private int mHandles;
+
+        Watch(DirObserver observer) {
+            mObserver = observer;
+        }
+    }
+
+    private class DirObserver extends FileObserver {
+        private final String mDirPath;
+
+        @RequiresApi(Build.VERSION_CODES.Q)
+        DirObserver(File dir, String dirPath) {
+            super(dir, EVENT_MASK);
+            mDirPath = dirPath;
+        }
+
+        @SuppressWarnings("deprecation")
+        DirObserver(String dir, String dirPath) {
+            super(dir, EVENT_MASK);
+            mDirPath = dirPath;
+        }
+
+        @Override
+        public void onEvent(int event, @Nullable String path) {
+            ChangeWatcher.this.onEvent(mDirPath, event, path);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Serves large reads through positional reads on the channel of an open file.
+ * <p>
+ * {@link org.filesys.smb.server.disk.JavaNIONetworkFile} reads at the channel's current
+ * position, so reads of the same file from the read-ahead thread and the SMB worker threads would
+ * have to be serialised. Positional reads leave the channel's position alone and can run
+ * concurrently, and as they go through the handle the client opened, they keep reading the same
+ * file even if it is renamed or replaced in the meantime.
+ * <p>
+ * Memory-mapping the file would avoid the copy into the packet buffer, but other apps
+ * truncating a file while it is mapped would crash our whole process, which we can't rule out
+ * on shared storage.
+ */
+class DirectFileReader implements ReadAheadEngine.Source {
+    private final FileChannel mChannel;
+
+    DirectFileReader(FileChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * @return The number of bytes read, or <code>0</code> at the end of the file.
+     */
+    @Override
+    public int read(byte[] buf, int bufPos, int len, long filePos) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(buf, bufPos, len);
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, filePos + buffer.position() - bufPos);
+            if (read < 0) {
+                break;
+            }
+        }
+        return buffer.position() - bufPos;
+    }
+}
@@ -0,0 +1,95 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import org.filesys.server.filesys.FileInfo;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches complete directory listings including the attributes of every entry, so that paged
+ * search continuations and repeated listings of the same directory don't need to go back to the
+ * file system.
+ */
+class DirectorySnapshotCache {
+    private static final long TTL_MS = 5000;
+    // Total number of directory entries across all cached snapshots
+    private static final long MAX_ENTRIES = 32768;
+
+    interface Loader {
+        List<FileInfo> load() throws IOException;
+    }
+
+    private final Cache<String, List<FileInfo>> mCache;
+    private final boolean mCaseInsensitive;
+
+    DirectorySnapshotCache(boolean caseInsensitive) {
+        mCaseInsensitive = caseInsensitive;
+        mCache = CacheBuilder.newBuilder()
+                .maximumWeight(MAX_ENTRIES)
+                .weigher((String key, List<FileInfo> entries) -> Math.max(1, entries.size()))
+                .expireAfterWrite(TTL_MS, TimeUnit.MILLISECONDS)
+                .concurrencyLevel(4)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Get the snapshot of a directory, loading it if necessary. Concurrent requests for the same
+     * directory share a single load.
+     *
+     * @return An unmodifiable list of directory entries. The <code>FileInfo</code> objects must
+     *         not be modified.
+     */
+    List<FileInfo> get(String dirPath, Loader loader) throws IOException {
+        try {
+            return mCache.get(normalize(dirPath), loader::load);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    void invalidate(String dirPath) {
+        mCache.invalidate(normalize(dirPath));
+    }
+
+    /**
+     * Invalidate the snapshots of a directory and all directories below it.
+     */
+    void invalidateTree(String dirPath) {
+        String key = normalize(dirPath);
+        String prefix = key + SharePath.SEPARATOR;
+        Iterator<String> keys = mCache.asMap().keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().startsWith(prefix)) {
+                keys.remove();
+            }
+        }
+        mCache.invalidate(key);
+    }
+
+    void invalidateAll() {
+        mCache.invalidateAll();
+    }
+
+    CacheStats stats() {
+        return mCache.stats();
+    }
+
+    private String normalize(String path) {
+        return SharePath.normalize(path, mCaseInsensitive);
+    }
+}
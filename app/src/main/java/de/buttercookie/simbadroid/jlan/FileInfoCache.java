@@ -0,0 +1,110 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import androidx.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import org.filesys.server.filesys.FileInfo;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LRU cache for file attributes, keyed by share-relative path.
+ * <p>
+ * Entries are invalidated by the driver whenever it changes a file itself, and expire after a
+ * short time to pick up changes made outside the SMB server.
+ */
+class FileInfoCache {
+    private static final long TTL_MS = 5000;
+    private static final int MAX_ENTRIES = 4096;
+    private static final long MAX_BYTES = 2 * 1024 * 1024;
+    // Rough per-entry overhead of the FileInfo object, the cache entry and the key.
+    private static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    private final Cache<String, FileInfo> mCache;
+    private final boolean mCaseInsensitive;
+
+    FileInfoCache(boolean caseInsensitive) {
+        mCaseInsensitive = caseInsensitive;
+        // Guava doesn't support limiting both the entry count and the total weight, so each entry
+        // weighs at least its share of the memory limit, which caps the entry count, too.
+        mCache = CacheBuilder.newBuilder()
+                .maximumWeight(MAX_BYTES)
+                .weigher((String key, FileInfo info) -> Math.max(
+                        (int) (MAX_BYTES / MAX_ENTRIES),
+                        ENTRY_OVERHEAD_BYTES + 2 * (key.length() + nameLength(info))))
+                .expireAfterWrite(TTL_MS, TimeUnit.MILLISECONDS)
+                .concurrencyLevel(4)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @return A copy of the cached file information, or <code>null</code> if there is no valid
+     *         entry for the path.
+     */
+    @Nullable
+    FileInfo get(String path) {
+        FileInfo cached = mCache.getIfPresent(normalize(path));
+        return cached != null ? copyOf(cached) : null;
+    }
+
+    void put(String path, FileInfo info) {
+        mCache.put(normalize(path), copyOf(info));
+    }
+
+    /**
+     * Invalidate a file or directory, as well as its parent directory, whose modification time
+     * changes along with its contents.
+     */
+    void invalidate(String path) {
+        String key = normalize(path);
+        mCache.invalidate(key);
+        mCache.invalidate(SharePath.parentOf(key));
+    }
+
+    /**
+     * Invalidate a directory including everything below it, e.g. after it has been renamed or
+     * deleted.
+     */
+    void invalidateTree(String path) {
+        String key = normalize(path);
+        String prefix = key + SharePath.SEPARATOR;
+        Iterator<String> keys = mCache.asMap().keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().startsWith(prefix)) {
+                keys.remove();
+            }
+        }
+        invalidate(key);
+    }
+
+    void invalidateAll() {
+        mCache.invalidateAll();
+    }
+
+    CacheStats stats() {
+        return mCache.stats();
+    }
+
+    private String normalize(String path) {
+        return SharePath.normalize(path, mCaseInsensitive);
+    }
+
+    private static int nameLength(FileInfo info) {
+        return info.getFileName() != null ? info.getFileName().length() : 0;
+    }
+
+    private static FileInfo copyOf(FileInfo info) {
+        FileInfo copy = new FileInfo();
+        copy.copyFrom(info);
+        return copy;
+    }
+}
@@ -0,0 +1,37 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * Abstracts the platform-specific file system queries needed by {@link SimbaDiskDriver} and
+ * {@link SimbaDiskDeviceContext}, so that the driver can also run on a plain JVM.
+ */
+interface FileSystemProbe {
+    record SpaceInfo(long blockSize, long totalBlocks, long availableBlocks) {
+    }
+
+    /**
+     * @return Size and free space of the file system containing <code>path</code>.
+     */
+    SpaceInfo getSpaceInfo(String path);
+
+    /**
+     * @return An identifier of the device (volume) containing <code>path</code>, as in
+     *         <code>stat.st_dev</code>.
+     */
+    long getDeviceId(String path) throws IOException;
+
+    /**
+     * @return The type of the file system containing <code>path</code>, e.g. "ext4" or "vfat",
+     *         or <code>null</code> if unknown. For file systems stacked on top of another one
+     *         (FUSE, sdcardfs), the type of the lower file system is returned where possible.
+     */
+    @Nullable
+    String getFileSystemType(String path);
+}
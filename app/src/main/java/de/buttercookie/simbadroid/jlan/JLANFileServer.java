@@ -7,19 +7,42 @@ package de.buttercookie.simbadroid.jlan;
 import android.content.Context;
 import android.net.LinkAddress;
 
+import androidx.annotation.Nullable;
+
 import com.google.common.util.concurrent.Monitor;
 
 import org.filesys.netbios.server.NetBIOSNameServer;
 import org.filesys.server.NetworkServer;
+import org.filesys.server.SessionListener;
+import org.filesys.server.SrvSession;
 import org.filesys.server.config.InvalidConfigurationException;
 import org.filesys.smb.server.SMBServer;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
 import de.buttercookie.simbadroid.util.ThreadUtils;
 
 public class JLANFileServer {
     private final JLANFileServerConfiguration mCfg;
     private boolean mStarted = false;
+    private boolean mAllInterfaces = false;
     private final Monitor startupMonitor = new Monitor();
+    private final SessionListener mSessionListener = new SessionListener() {
+        @Override
+        public void sessionClosed(SrvSession sess) {
+            mCfg.onSessionClosed(sess);
+        }
+
+        @Override
+        public void sessionCreated(SrvSession sess) {
+        }
+
+        @Override
+        public void sessionLoggedOn(SrvSession sess) {
+        }
+    };
 
     public JLANFileServer(Context context, String hostName) throws Exception {
         mCfg = new JLANFileServerConfiguration(context, hostName);
@@ -33,17 +56,10 @@ public class JLANFileServer {
                 return;
             }
 
-            try {
-                mCfg.addServer(new NetBIOSNameServer(mCfg));
-                mCfg.addServer(new SMBServer(mCfg));
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-
-            for (int i = 0; i < mCfg.numberOfServers(); i++) {
-                NetworkServer server = mCfg.getServer(i);
-                server.startServer();
-            }
+            startServers();
+            mCfg.startThreadPoolMonitor();
+            mCfg.startMetrics();
+            mCfg.startHostAnnouncer();
             mStarted = true;
         } finally {
             startupMonitor.leave();
@@ -56,27 +72,132 @@ public class JLANFileServer {
             return;
         }
 
-        for (int i = 0; i < mCfg.numberOfServers(); i++) {
-            NetworkServer server = mCfg.getServer(i);
-            server.shutdownServer(false);
-        }
-        mCfg.removeAllServers();
+        mCfg.stopHostAnnouncer();
+        mCfg.stopThreadPoolMonitor();
+        mCfg.stopMetrics();
+        stopServers();
+        ThreadUtils.postToBackgroundThread(mCfg::flushRenameTimestampFixups);
         ThreadUtils.postToBackgroundThread(this::tryRemoveTrashcanFolders);
         mStarted = false;
     }
 
+    /**
+     * Stop the server for good and release the shares. The server can't be started again
+     * afterwards.
+     */
+    public void close() {
+        ThreadUtils.assertOnUiThread();
+        stop();
+        // Runs after the clean-up work queued by stop().
+        ThreadUtils.postToBackgroundThread(mCfg::close);
+    }
+
     public boolean running() {
         return mStarted;
     }
 
-    public void setBindAddress(LinkAddress address) {
+    /**
+     * @param allInterfaces Whether to accept SMB connections on all interfaces, not just the one
+     *                      <code>address</code> belongs to. Restricting access to the intended
+     *                      interfaces is then up to the caller.
+     */
+    public void setBindAddress(LinkAddress address, boolean allInterfaces) {
         try {
-            mCfg.setBindAddress(address);
+            mCfg.setBindAddress(address, allInterfaces);
+            mAllInterfaces = allInterfaces;
         } catch (InvalidConfigurationException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * @param browserActivity Returns a counter of received NetBIOS datagrams, or a negative value
+     *                        if unknown, so that host announcements can be paused while no
+     *                        browser is around. Called on a background thread.
+     */
+    public void setBrowserActivitySource(@Nullable LongSupplier browserActivity) {
+        mCfg.setBrowserActivitySource(browserActivity);
+    }
+
+    /**
+     * Move a running server to a new address. Only the listening SMB and NetBIOS servers are
+     * restarted, while the shares including their caches, the thread and memory pools and any
+     * pending background work are kept as they are. If SMB listens on all interfaces both before
+     * and after, it isn't affected by the address and keeps its sessions, so only the NetBIOS
+     * name server is restarted.
+     */
+    public void rebind(LinkAddress address, boolean allInterfaces) {
+        ThreadUtils.assertOnUiThread();
+        startupMonitor.enter();
+        try {
+            if (!mStarted) {
+                setBindAddress(address, allInterfaces);
+                return;
+            }
+
+            if (allInterfaces && mAllInterfaces) {
+                restartNameServer(address);
+            } else {
+                stopServers();
+                setBindAddress(address, allInterfaces);
+                startServers();
+            }
+            mCfg.restartHostAnnouncer();
+        } finally {
+            startupMonitor.leave();
+        }
+    }
+
+    private void startServers() {
+        try {
+            mCfg.addServer(new NetBIOSNameServer(mCfg));
+            SMBServer smbServer = new SMBServer(mCfg);
+            smbServer.addSessionListener(ServerMetrics.get());
+            smbServer.addSessionListener(mSessionListener);
+            mCfg.addServer(smbServer);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        for (int i = 0; i < mCfg.numberOfServers(); i++) {
+            NetworkServer server = mCfg.getServer(i);
+            server.startServer();
+        }
+    }
+
+    private void restartNameServer(LinkAddress address) {
+        List<NetworkServer> servers = new ArrayList<>();
+        for (int i = 0; i < mCfg.numberOfServers(); i++) {
+            servers.add(mCfg.getServer(i));
+        }
+        mCfg.removeAllServers();
+        for (NetworkServer server : servers) {
+            if (server instanceof NetBIOSNameServer) {
+                server.shutdownServer(false);
+            } else {
+                mCfg.addServer(server);
+            }
+        }
+
+        setBindAddress(address, true);
+        NetworkServer nameServer;
+        try {
+            nameServer = new NetBIOSNameServer(mCfg);
+            mCfg.addServer(nameServer);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        nameServer.startServer();
+    }
+
+    private void stopServers() {
+        for (int i = 0; i < mCfg.numberOfServers(); i++) {
+            NetworkServer server = mCfg.getServer(i);
+            server.shutdownServer(false);
+        }
+        mCfg.removeAllServers();
+    }
+
     private void tryRemoveTrashcanFolders() {
         // If the server is already starting up again, there's no point in trying to remove the
         // trashcan folders.
@@ -36,30 +36,81 @@ import org.filesys.smb.server.SMBSrvSession;
 import org.springframework.extensions.config.element.GenericConfigElement;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.function.LongSupplier;
 
 import de.buttercookie.simbadroid.BuildConfig;
+import de.buttercookie.simbadroid.R;
+import de.buttercookie.simbadroid.Settings;
 import de.buttercookie.simbadroid.util.FileUtils;
 import de.buttercookie.simbadroid.util.SdCard;
 
 public class JLANFileServerConfiguration extends ServerConfiguration {
-    private static final int DefaultThreadPoolInit = 6;
-    private static final int DefaultThreadPoolMax = 6;
+    private static final AdaptiveMemoryPoolPolicy.Mode MemoryPoolMode =
+            AdaptiveMemoryPoolPolicy.Mode.ADAPTIVE;
+    // Size of the per-file buffers used for coalescing small writes, 0 to disable. Stays disabled
+    // until oplock breaks flush the buffered data, as until then other clients and local apps
+    // reading a file can miss data already acknowledged to the writer.
+    private static final int WriteBehindBufferSize = 0;
+    // Write JFileServer debug output to a rotating log file in the app's external files directory
+    // instead of logcat.
+    private static final boolean DebugToFile = false;
+    // Loopback port serving the metrics in the Prometheus text format, 0 to disable. Any app on
+    // the device can connect to it, so it's only enabled in debug builds.
+    private static final int MetricsPort = BuildConfig.DEBUG ? 9190 : 0;
+    private static final String DomainName = "WORKGROUP";
 
-    private static final int[] DefaultMemoryPoolBufSizes = {256, 4096, 16384, 66000};
-    private static final int[] DefaultMemoryPoolInitAlloc = {20, 20, 5, 5};
-    private static final int[] DefaultMemoryPoolMaxAlloc = {100, 50, 50, 50};
+    private final AdaptiveThreadPoolPolicy mThreadPoolPolicy = new AdaptiveThreadPoolPolicy();
+    private final AdaptiveMemoryPoolPolicy mMemoryPoolPolicy =
+            new AdaptiveMemoryPoolPolicy(MemoryPoolMode);
+    @Nullable
+    private final MetricsEndpoint mMetricsEndpoint =
+            MetricsPort > 0 ? new MetricsEndpoint(MetricsPort) : null;
+    private final SimbaDiskDriver mDiskInterface;
+    @Nullable
+    private AdaptiveHostAnnouncer mHostAnnouncer;
+
+    /**
+     * A disk share served by {@link SimbaDiskDriver}.
+     *
+     * @param trashcanPath If not <code>null</code>, deleted files are moved here instead.
+     */
+    record Share(String name, String path, @Nullable String trashcanPath) {
+    }
 
     public JLANFileServerConfiguration(Context context, String hostName)
             throws InvalidConfigurationException, DeviceContextException {
+        this(hostName, getDefaultShares(context), new AndroidFileSystemProbe(),
+                DebugToFile ? new File(context.getExternalFilesDir(null), "logs/jfileserver.log")
+                        : null);
+        if (context.getResources().getBoolean(R.bool.netbios_host_announcements)) {
+            mHostAnnouncer = new AdaptiveHostAnnouncer(hostName, DomainName);
+        }
+        setDirectReadThreshold(Settings.getDirectReadThreshold(context));
+    }
+
+    JLANFileServerConfiguration(String hostName, List<Share> shares, FileSystemProbe probe)
+            throws InvalidConfigurationException, DeviceContextException {
+        this(hostName, shares, probe, null);
+    }
+
+    /**
+     * @param debugLogFile If not <code>null</code>, debug output is written here instead of to
+     *                     logcat.
+     */
+    JLANFileServerConfiguration(String hostName, List<Share> shares, FileSystemProbe probe,
+                                @Nullable File debugLogFile)
+            throws InvalidConfigurationException, DeviceContextException {
         super(hostName);
 
         // Debug
@@ -67,13 +118,21 @@ public class JLANFileServerConfiguration extends ServerConfiguration {
         final GenericConfigElement debugConfigElement = new GenericConfigElement("output");
         final GenericConfigElement logLevelConfigElement = new GenericConfigElement("logLevel");
         logLevelConfigElement.setValue("Debug");
-        debugConfig.setDebug("org.filesys.debug.ConsoleDebug", debugConfigElement);
+        debugConfigElement.addChild(logLevelConfigElement);
+        if (debugLogFile != null) {
+            final GenericConfigElement fileConfigElement = new GenericConfigElement("file");
+            fileConfigElement.setValue(debugLogFile.getAbsolutePath());
+            debugConfigElement.addChild(fileConfigElement);
+        }
+        debugConfig.setDebug(RingBufferDebug.class.getName(), debugConfigElement);
 
         // Core
         CoreServerConfigSection coreConfig = new CoreServerConfigSection(this);
-        coreConfig.setMemoryPool(DefaultMemoryPoolBufSizes, DefaultMemoryPoolInitAlloc,
-                DefaultMemoryPoolMaxAlloc);
-        coreConfig.setThreadPool(DefaultThreadPoolInit, DefaultThreadPoolMax);
+        coreConfig.setMemoryPool(mMemoryPoolPolicy.getBufferSizes(),
+                mMemoryPoolPolicy.getInitialAllocations(),
+                mMemoryPoolPolicy.getMaximumAllocations());
+        coreConfig.setThreadPool(mThreadPoolPolicy.getInitialSize(),
+                mThreadPoolPolicy.getMaximumSize());
         coreConfig.getThreadPool().setDebug(false);
 
         // Global
@@ -90,24 +149,19 @@ public class JLANFileServerConfiguration extends ServerConfiguration {
 
         // Shares
         FilesystemsConfigSection filesysConfig = new FilesystemsConfigSection(this);
-        DiskInterface diskInterface = new SimbaDiskDriver();
-        File sdCard = SdCard.findSdCardPath(context, null);
-        if (sdCard != null) {
-            addShare(diskInterface, this, filesysConfig, secConfig,
-                    "External", sdCard.getAbsolutePath(),
-                    FileUtils.getTrashcanPath(context, sdCard).getAbsolutePath(), true);
+        mDiskInterface = new MeteredDiskDriver(mMemoryPoolPolicy, probe);
+        mDiskInterface.setWriteBehindBufferSize(WriteBehindBufferSize);
+        for (Share share : shares) {
+            addShare(mDiskInterface, this, filesysConfig, secConfig,
+                    share.name(), share.path(), share.trashcanPath(), true);
         }
-        File internal = Environment.getExternalStorageDirectory();
-        addShare(diskInterface, this, filesysConfig, secConfig,
-                "Internal", internal.getAbsolutePath(),
-                FileUtils.getTrashcanPath(context, internal).getAbsolutePath(), true);
 
         // SMB
         SMBConfigSection smbConfig = new SMBConfigSection(this);
         smbConfig.setServerName(hostName);
-        smbConfig.setDomainName("WORKGROUP");
-        smbConfig.setHostAnnounceInterval(5);
-        smbConfig.setHostAnnouncer(true);
+        smbConfig.setDomainName(DomainName);
+        // Replaced by our own AdaptiveHostAnnouncer.
+        smbConfig.setHostAnnouncer(false);
         smbConfig.setNameServerPort(1137);
         smbConfig.setDatagramPort(1138);
         smbConfig.setSessionPort(1139);
@@ -141,30 +195,155 @@ public class JLANFileServerConfiguration extends ServerConfiguration {
             // Additionally, if core lib desugaring is enabled with a minApi <= 23, it includes a
             // copy of the Java 1.7 implementation of ConcurrentHashMap which then shadows the 1.8
             // version even on API29+ devices, hence the need for separate build flavours.
+
+            // JFileServer doesn't let us plug in an open file map of our own that avoids
+            // ConcurrentHashMap, so this stays necessary until it does.
             smbConfig.setDisableHashedOpenFileMap(true);
         }
     }
 
-    void setBindAddress(LinkAddress bindAddress) throws InvalidConfigurationException {
+    /**
+     * Serve page-aligned reads of at least <code>threshold</code> bytes through positional reads
+     * on the open file's channel, see {@link DirectFileReader}. <code>0</code> disables this.
+     */
+    void setDirectReadThreshold(int threshold) {
+        mDiskInterface.setDirectReadThreshold(threshold);
+    }
+
+    private static List<Share> getDefaultShares(Context context) {
+        LowerFsPaths.Mode storageMode = Settings.isDirectStorageAccessEnabled(context) ?
+                LowerFsPaths.Mode.DIRECT_IF_ACCESSIBLE : LowerFsPaths.Mode.FUSE;
+        List<Share> shares = new ArrayList<>();
+        File sdCard = SdCard.findSdCardPath(context, null);
+        if (sdCard != null) {
+            shares.add(createShare("External", sdCard,
+                    FileUtils.getTrashcanPath(context, sdCard), storageMode));
+        }
+        File internal = Environment.getExternalStorageDirectory();
+        shares.add(createShare("Internal", internal,
+                FileUtils.getTrashcanPath(context, internal), storageMode));
+        return shares;
+    }
+
+    private static Share createShare(String name, File path, @Nullable File trashcan,
+                                     LowerFsPaths.Mode storageMode) {
+        String sharePath = path.getAbsolutePath();
+        String trashcanPath = trashcan != null ? trashcan.getAbsolutePath() : null;
+        LowerFsPaths.Mapping mapping = storageMode == LowerFsPaths.Mode.DIRECT_IF_ACCESSIBLE ?
+                LowerFsPaths.findMapping(sharePath) : null;
+        if (mapping != null) {
+            try {
+                // The trashcan needs to stay on the same file system as the share, so it has to
+                // be mapped, too.
+                sharePath = mapping.apply(path.getCanonicalPath());
+                if (trashcan != null) {
+                    trashcanPath = mapping.apply(trashcan.getCanonicalPath());
+                }
+            } catch (IOException ignored) {
+                sharePath = path.getAbsolutePath();
+                trashcanPath = trashcan != null ? trashcan.getAbsolutePath() : null;
+            }
+        }
+        return new Share(name, sharePath, trashcanPath);
+    }
+
+    /**
+     * @param allInterfaces Whether SMB should listen on all interfaces instead of just
+     *                      <code>bindAddress</code>. NetBIOS always stays on
+     *                      <code>bindAddress</code>, as the name server answers queries with the
+     *                      address it is bound to.
+     */
+    void setBindAddress(LinkAddress bindAddress, boolean allInterfaces)
+            throws InvalidConfigurationException {
+        setBindAddress(bindAddress.getAddress(), getBroadcastAddress(bindAddress.getAddress()),
+                allInterfaces);
+    }
+
+    void setBindAddress(InetAddress bindAddress, @Nullable String broadcastAddress)
+            throws InvalidConfigurationException {
+        setBindAddress(bindAddress, broadcastAddress, false);
+    }
+
+    private void setBindAddress(InetAddress bindAddress, @Nullable String broadcastAddress,
+                                boolean allInterfaces) throws InvalidConfigurationException {
         final SMBConfigSection smbConfig =
                 (SMBConfigSection) getConfigSection(SMBConfigSection.SectionName);
 
-        smbConfig.setSMBBindAddress(bindAddress.getAddress());
-        smbConfig.setNetBIOSBindAddress(bindAddress.getAddress());
+        smbConfig.setSMBBindAddress(allInterfaces ? null : bindAddress);
+        smbConfig.setNetBIOSBindAddress(bindAddress);
+
+        if (broadcastAddress != null) {
+            smbConfig.setBroadcastMask(broadcastAddress);
+            NetworkSettings.setBroadcastMask(broadcastAddress);
+        }
+        if (mHostAnnouncer != null) {
+            mHostAnnouncer.setAddress(bindAddress, broadcastAddress);
+        }
+    }
+
+    void startThreadPoolMonitor() {
+        final CoreServerConfigSection coreConfig =
+                (CoreServerConfigSection) getConfigSection(CoreServerConfigSection.SectionName);
+        mThreadPoolPolicy.startMonitoring(coreConfig.getThreadPool());
+    }
+
+    void stopThreadPoolMonitor() {
+        mThreadPoolPolicy.stopMonitoring();
+    }
 
-        String broadcastAddress = getBroadcastAddress(bindAddress);
-        smbConfig.setBroadcastMask(broadcastAddress);
-        NetworkSettings.setBroadcastMask(broadcastAddress);
+    void startMetrics() {
+        final CoreServerConfigSection coreConfig =
+                (CoreServerConfigSection) getConfigSection(CoreServerConfigSection.SectionName);
+        ServerMetrics.get().setQueueDepthSource(coreConfig.getThreadPool()::getNumberOfRequests);
+        if (mMetricsEndpoint != null) {
+            mMetricsEndpoint.start();
+        }
     }
 
-    private static String getBroadcastAddress(LinkAddress address) {
+    void startHostAnnouncer() {
+        if (mHostAnnouncer != null) {
+            mHostAnnouncer.start();
+        }
+    }
+
+    /**
+     * Start over with quick announcements to NetBIOS browsers after a network change.
+     */
+    void restartHostAnnouncer() {
+        if (mHostAnnouncer != null) {
+            mHostAnnouncer.restart();
+        }
+    }
+
+    void stopHostAnnouncer() {
+        if (mHostAnnouncer != null) {
+            mHostAnnouncer.stop();
+        }
+    }
+
+    void setBrowserActivitySource(@Nullable LongSupplier browserActivity) {
+        if (mHostAnnouncer != null) {
+            mHostAnnouncer.setBrowserActivitySource(browserActivity);
+        }
+    }
+
+    void stopMetrics() {
+        if (mMetricsEndpoint != null) {
+            mMetricsEndpoint.stop();
+        }
+        ServerMetrics.get().setQueueDepthSource(null);
+    }
+
+    private static String getBroadcastAddress(InetAddress address) {
         String broadcastAddress = null;
-        if (address.getAddress() instanceof Inet4Address v4addr) {
+        if (address instanceof Inet4Address v4addr) {
             try {
                 InterfaceAddress ifAddr = convertToInterfaceAddress(v4addr);
-                broadcastAddress = ifAddr.getBroadcast().getHostAddress();
+                if (ifAddr.getBroadcast() != null) {
+                    broadcastAddress = ifAddr.getBroadcast().getHostAddress();
+                }
             } catch (SocketException ignored) {}
-        } else if (address.getAddress() instanceof Inet6Address) {
+        } else if (address instanceof Inet6Address) {
             broadcastAddress = "ff02::1";
         }
         return broadcastAddress;
@@ -201,7 +380,7 @@ public class JLANFileServerConfiguration extends ServerConfiguration {
                 (DiskDeviceContext) diskInterface.createContext(shareName, driverConfig);
         diskDeviceContext.setShareName(shareName);
         diskDeviceContext.setConfigurationParameters(driverConfig);
-        diskDeviceContext.enableChangeHandler(false);
+        diskDeviceContext.enableChangeHandler(true);
         DiskSharedDevice diskDev = new DiskSharedDevice(shareName, diskInterface, diskDeviceContext);
         diskDev.setConfiguration(serverConfig);
         diskDev.setAccessControlList(secConfig.getGlobalAccessControls());
@@ -209,6 +388,58 @@ public class JLANFileServerConfiguration extends ServerConfiguration {
         filesysConfig.addShare(diskDev);
     }
 
+    /**
+     * Release everything the shares keep for the given session, e.g. watched directories.
+     */
+    void onSessionClosed(SrvSession sess) {
+        final FilesystemsConfigSection filesysConfig =
+                (FilesystemsConfigSection) getConfigSection(FilesystemsConfigSection.SectionName);
+
+        Enumeration<SharedDevice> shares = filesysConfig.getShares().enumerateShares();
+        while (shares.hasMoreElements()) {
+            SharedDevice share = shares.nextElement();
+            if (share.getContext() instanceof SimbaDiskDeviceContext diskContext) {
+                diskContext.onSessionClosed(sess);
+            }
+        }
+    }
+
+    /**
+     * Tear down the shares and debug output once the configuration is no longer needed, stopping
+     * any directory watches and the debug output thread.
+     */
+    void close() {
+        final FilesystemsConfigSection filesysConfig =
+                (FilesystemsConfigSection) getConfigSection(FilesystemsConfigSection.SectionName);
+
+        Enumeration<SharedDevice> shares = filesysConfig.getShares().enumerateShares();
+        while (shares.hasMoreElements()) {
+            SharedDevice share = shares.nextElement();
+            if (share.getContext() != null) {
+                share.getContext().CloseContext();
+            }
+        }
+
+        final DebugConfigSection debugConfig =
+                (DebugConfigSection) getConfigSection(DebugConfigSection.SectionName);
+        if (debugConfig != null && debugConfig.getDebug() != null) {
+            debugConfig.getDebug().close();
+        }
+    }
+
+    void flushRenameTimestampFixups() {
+        final FilesystemsConfigSection filesysConfig =
+                (FilesystemsConfigSection) getConfigSection(FilesystemsConfigSection.SectionName);
+
+        Enumeration<SharedDevice> shares = filesysConfig.getShares().enumerateShares();
+        while (shares.hasMoreElements()) {
+            SharedDevice share = shares.nextElement();
+            if (share.getContext() instanceof SimbaDiskDeviceContext diskContext) {
+                diskContext.flushRenameTimestampFixups();
+            }
+        }
+    }
+
     void removeTrashcanFolders() {
         final FilesystemsConfigSection filesysConfig =
                 (FilesystemsConfigSection) getConfigSection(FilesystemsConfigSection.SectionName);
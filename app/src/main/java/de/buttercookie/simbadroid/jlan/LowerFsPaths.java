@@ -0,0 +1,154 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.annotation.SuppressLint;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Maps shared storage paths below <code>/storage</code>, which go through sdcardfs or FUSE, to
+ * the directories of the underlying file system, so that file I/O can skip the extra round trip
+ * through the storage daemon.
+ * <p>
+ * This only works if our process is actually allowed to access the lower file system, which
+ * depends on the device, the Android version and the SELinux policy. Files written this way also
+ * bypass the media provider, so they only show up in media apps after the next media scan.
+ */
+class LowerFsPaths {
+    private static final String LOGTAG = "LowerFsPaths";
+
+    public enum Mode {
+        /** Always serve shares through the regular storage paths. */
+        FUSE,
+        /** Use the lower file system paths if they turn out to be usable. */
+        DIRECT_IF_ACCESSIBLE,
+    }
+
+    // /storage/emulated/<user> -> /data/media/<user>
+    private static final Pattern EMULATED_STORAGE =
+            Pattern.compile("^/storage/emulated/(\\d+)(/.*)?$");
+    // /storage/<volume UUID> -> /mnt/media_rw/<volume UUID>
+    private static final Pattern PUBLIC_VOLUME =
+            Pattern.compile("^/storage/([0-9A-Fa-f]{4}-[0-9A-Fa-f]{4}|[0-9A-Fa-f]{16})(/.*)?$");
+
+    @SuppressLint("SdCardPath")
+    private static final String EMULATED_LOWER_ROOT = "/data/media/";
+    private static final String PUBLIC_LOWER_ROOT = "/mnt/media_rw/";
+
+    /**
+     * A verified mapping from the root of a storage volume to its lower file system directory.
+     */
+    record Mapping(String storageRoot, String lowerRoot) {
+        String apply(String path) {
+            if (path.equals(storageRoot)) {
+                return lowerRoot;
+            } else if (path.startsWith(storageRoot + "/")) {
+                return lowerRoot + path.substring(storageRoot.length());
+            }
+            return path;
+        }
+    }
+
+    private LowerFsPaths() {}
+
+    /**
+     * @return The mapping for the storage volume containing <code>path</code>, or
+     *         <code>null</code> if the path isn't on a known volume or the lower file system
+     *         directory isn't accessible.
+     */
+    @Nullable
+    static Mapping findMapping(String path) {
+        String canonicalPath;
+        try {
+            // Resolve /sdcard, /storage/self/primary and friends.
+            canonicalPath = new File(path).getCanonicalPath();
+        } catch (IOException e) {
+            return null;
+        }
+
+        Mapping mapping = getMapping(canonicalPath);
+        if (mapping == null) {
+            return null;
+        }
+        if (!isUsable(mapping, canonicalPath)) {
+            Log.i(LOGTAG, "Lower file system path " + mapping.lowerRoot() +
+                    " isn't accessible, serving " + path + " through " + mapping.storageRoot());
+            return null;
+        }
+        Log.i(LOGTAG, "Serving " + path + " directly from " + mapping.apply(canonicalPath));
+        return mapping;
+    }
+
+    /**
+     * @return The mapping for the storage volume containing the given canonical path, without
+     *         checking whether it is actually accessible.
+     */
+    @Nullable
+    static Mapping getMapping(String canonicalPath) {
+        Matcher matcher = EMULATED_STORAGE.matcher(canonicalPath);
+        if (matcher.matches()) {
+            return new Mapping("/storage/emulated/" + matcher.group(1),
+                    EMULATED_LOWER_ROOT + matcher.group(1));
+        }
+        matcher = PUBLIC_VOLUME.matcher(canonicalPath);
+        if (matcher.matches()) {
+            return new Mapping("/storage/" + matcher.group(1),
+                    PUBLIC_LOWER_ROOT + matcher.group(1));
+        }
+        return null;
+    }
+
+    private static boolean isUsable(Mapping mapping, String canonicalPath) {
+        File lower = new File(mapping.apply(canonicalPath));
+        File upper = new File(canonicalPath);
+        if (!lower.isDirectory() || !lower.canRead() || !lower.canWrite()) {
+            return false;
+        }
+
+        // Make sure we're really looking at the same directory and not at some unrelated or
+        // stale mount point.
+        String[] lowerNames = lower.list();
+        String[] upperNames = upper.list();
+        if (lowerNames == null || upperNames == null) {
+            return false;
+        }
+        Set<String> lowerSet = new HashSet<>(Arrays.asList(lowerNames));
+        Set<String> upperSet = new HashSet<>(Arrays.asList(upperNames));
+        // The storage daemon may hide some entries (e.g. other apps' private directories), so
+        // everything visible through it must exist below, but not necessarily the other way round.
+        if (!lowerSet.containsAll(upperSet)) {
+            return false;
+        }
+        // Matching listings don't prove much for a (nearly) empty directory, and canWrite() only
+        // checks the permission bits, not the SELinux policy, so round-trip an actual file.
+        return isSameDirectory(lower, upper);
+    }
+
+    private static boolean isSameDirectory(File lower, File upper) {
+        String name = ".simbadroid-probe-" + System.nanoTime();
+        File lowerFile = new File(lower, name);
+        byte[] content = name.getBytes(StandardCharsets.UTF_8);
+        try {
+            Files.write(lowerFile.toPath(), content);
+            return Arrays.equals(content, Files.readAllBytes(new File(upper, name).toPath()));
+        } catch (IOException | SecurityException e) {
+            return false;
+        } finally {
+            lowerFile.delete();
+        }
+    }
+}
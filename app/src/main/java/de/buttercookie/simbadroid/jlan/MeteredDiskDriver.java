@@ -0,0 +1,233 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import org.filesys.server.SrvSession;
+import org.filesys.server.filesys.FileInfo;
+import org.filesys.server.filesys.FileOpenParams;
+import org.filesys.server.filesys.NetworkFile;
+import org.filesys.server.filesys.SearchContext;
+import org.filesys.server.filesys.SearchFlags;
+import org.filesys.server.filesys.TreeConnection;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.EnumSet;
+
+import de.buttercookie.simbadroid.jlan.ServerMetrics.Op;
+
+/**
+ * {@link SimbaDiskDriver} recording the count, latency and outcome of every file operation, as
+ * well as per-share traffic and open files in {@link ServerMetrics}.
+ */
+class MeteredDiskDriver extends SimbaDiskDriver {
+    private final ServerMetrics mMetrics = ServerMetrics.get();
+
+    MeteredDiskDriver(AdaptiveMemoryPoolPolicy memoryPoolPolicy, FileSystemProbe probe) {
+        super(memoryPoolPolicy, probe);
+    }
+
+    @Override
+    public NetworkFile openFile(SrvSession sess, TreeConnection tree, FileOpenParams params)
+            throws IOException {
+        long start = mMetrics.startOp();
+        boolean success = false;
+        try {
+            NetworkFile file = super.openFile(sess, tree, params);
+            if (file != null) {
+                mMetrics.onFileOpened(shareName(tree));
+            }
+            success = true;
+            return file;
+        } finally {
+            mMetrics.endOp(Op.OPEN, start, success);
+        }
+    }
+
+    @Override
+    public NetworkFile createFile(SrvSession sess, TreeConnection tree, FileOpenParams params)
+            throws IOException {
+        long start = mMetrics.startOp();
+        boolean success = false;
+        try {
+            NetworkFile file = super.createFile(sess, tree, params);
+            if (file != null) {
+                mMetrics.onFileOpened(shareName(tree));
+            }
+            success = true;
+            return file;
+        } finally {
+            mMetrics.endOp(Op.CREATE, start, success);
+        }
+    }
+
+    @Override
+    public void closeFile(SrvSession sess, TreeConnection tree, NetworkFile file)
+            throws IOException {
+        long start = mMetrics.startOp();
+        boolean success = false;
+        try {
+            super.closeFile(sess, tree, file);
+            success = true;
+        } finally {
+            mMetrics.onFileClosed(shareName(tree));
+            mMetrics.endOp(Op.CLOSE, start, success);
+        }
+    }
+
+    @Override
+    public int readFile(SrvSession sess, TreeConnection tree, NetworkFile file, byte[] buf,
+                        int bufPos, int siz, long filePos) throws IOException {
+        long start = mMetrics.startOp();
+        boolean success = false;
+        try {
+            int read = super.readFile(sess, tree, file, buf, bufPos, siz, filePos);
+            mMetrics.onBytesRead(shareName(tree), read);
+            success = true;
+            return read;
+        } finally {
+            mMetrics.endOp(Op.READ, start, success);
+        }
+    }
+
+    @Override
+    public int writeFile(SrvSession sess, TreeConnection tree, NetworkFile file, byte[] buf,
+                         int bufoff, int siz, long fileoff) throws IOException {
+        long start = mMetrics.startOp();
+        boolean success = false;
+        try {
+            int written = super.writeFile(sess, tree, file, buf, bufoff, siz, fileoff);
+            mMetrics.onBytesWritten(shareName(tree), written);
+            success = true;
+            return written;
+        } finally {
+            mMetrics.endOp(Op.WRITE, start, success);
+        }
+    }
+
+    @Override
+    public void flushFile(SrvSession sess, TreeConnection tree, NetworkFile file)
+            throws IOException {
+        long start = mMetrics.startOp();
+        boolean success = false;
+        try {
+            super.flushFile(sess, tree, file);
+            success = true;
+        } finally {
+            mMetrics.endOp(Op.FLUSH, start, success);
+        }
+    }
+
+    @Override
+    public void truncateFile(SrvSession sess, TreeConnection tree, NetworkFile file, long siz)
+            throws IOException {
+        long start = mMetrics.startOp();
+        boolean success = false;
+        try {
+            super.truncateFile(sess, tree, file, siz);
+            success = true;
+        } finally {
+            mMetrics.endOp(Op.TRUNCATE, start, success);
+        }
+    }
+
+    @Override
+    public SearchContext startSearch(SrvSession sess, TreeConnection tree, String searchPath,
+                                     int attrib, EnumSet<SearchFlags> flags)
+            throws FileNotFoundException {
+        long start = mMetrics.startOp();
+        boolean success = false;
+        try {
+            SearchContext search = super.startSearch(sess, tree, searchPath, attrib, flags);
+            success = true;
+            return search;
+        } finally {
+            mMetrics.endOp(Op.SEARCH, start, success);
+        }
+    }
+
+    @Override
+    public FileInfo getFileInformation(SrvSession sess, TreeConnection tree, String name)
+            throws IOException {
+        long start = mMetrics.startOp();
+        boolean success = false;
+        try {
+            FileInfo info = super.getFileInformation(sess, tree, name);
+            success = true;
+            return info;
+        } finally {
+            mMetrics.endOp(Op.GET_INFO, start, success);
+        }
+    }
+
+    @Override
+    public void setFileInformation(SrvSession sess, TreeConnection tree, String name,
+                                   FileInfo info) throws IOException {
+        long start = mMetrics.startOp();
+        boolean success = false;
+        try {
+            super.setFileInformation(sess, tree, name, info);
+            success = true;
+        } finally {
+            mMetrics.endOp(Op.SET_INFO, start, success);
+        }
+    }
+
+    @Override
+    public void renameFile(SrvSession sess, TreeConnection tree, String oldName, String newName,
+                           NetworkFile netFile) throws IOException {
+        long start = mMetrics.startOp();
+        boolean success = false;
+        try {
+            super.renameFile(sess, tree, oldName, newName, netFile);
+            success = true;
+        } finally {
+            mMetrics.endOp(Op.RENAME, start, success);
+        }
+    }
+
+    @Override
+    public void deleteFile(SrvSession sess, TreeConnection tree, String name)
+            throws IOException {
+        long start = mMetrics.startOp();
+        boolean success = false;
+        try {
+            super.deleteFile(sess, tree, name);
+            success = true;
+        } finally {
+            mMetrics.endOp(Op.DELETE, start, success);
+        }
+    }
+
+    @Override
+    public void createDirectory(SrvSession sess, TreeConnection tree, FileOpenParams params)
+            throws IOException {
+        long start = mMetrics.startOp();
+        boolean success = false;
+        try {
+            super.createDirectory(sess, tree, params);
+            success = true;
+        } finally {
+            mMetrics.endOp(Op.CREATE_DIRECTORY, start, success);
+        }
+    }
+
+    @Override
+    public void deleteDirectory(SrvSession sess, TreeConnection tree, String dir)
+            throws IOException {
+        long start = mMetrics.startOp();
+        boolean success = false;
+        try {
+            super.deleteDirectory(sess, tree, dir);
+            success = true;
+        } finally {
+            mMetrics.endOp(Op.DELETE_DIRECTORY, start, success);
+        }
+    }
+
+    private static String shareName(TreeConnection tree) {
+        return tree.getContext().getShareName();
+    }
+}
@@ -0,0 +1,100 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves {@link ServerMetrics#toPrometheusText()} over HTTP on the loopback interface, e.g. for
+ * scraping through <code>adb forward</code>.
+ * <p>
+ * Requests are handled one at a time on a single thread and every request, regardless of its
+ * path, gets the full metrics dump.
+ */
+class MetricsEndpoint {
+    private static final String LOGTAG = "MetricsEndpoint";
+
+    private static final int SOCKET_TIMEOUT_MS = 2000;
+
+    private final int mPort;
+    private ServerSocket mServerSocket;
+    private Thread mThread;
+
+    MetricsEndpoint(int port) {
+        mPort = port;
+    }
+
+    synchronized void start() {
+        if (mServerSocket != null) {
+            return;
+        }
+        try {
+            mServerSocket = new ServerSocket(mPort, 4, InetAddress.getLoopbackAddress());
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Couldn't listen on port " + mPort, e);
+            return;
+        }
+        final ServerSocket serverSocket = mServerSocket;
+        mThread = new Thread(() -> serve(serverSocket), "SimbaMetrics");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    synchronized void stop() {
+        if (mServerSocket == null) {
+            return;
+        }
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Error closing metrics socket", e);
+        }
+        mServerSocket = null;
+        mThread = null;
+    }
+
+    private static void serve(ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            try (Socket socket = serverSocket.accept()) {
+                socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+                handle(socket);
+            } catch (SocketException e) {
+                // Closed by stop().
+            } catch (IOException e) {
+                Log.d(LOGTAG, "Error serving metrics request", e);
+            }
+        }
+    }
+
+    private static void handle(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+        // Skip the request line and headers.
+        String line;
+        do {
+            line = reader.readLine();
+        } while (line != null && !line.isEmpty());
+
+        byte[] body = ServerMetrics.get().toPrometheusText().getBytes(StandardCharsets.UTF_8);
+        String header = "HTTP/1.1 200 OK\r\n" +
+                "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n" +
+                "Content-Length: " + body.length + "\r\n" +
+                "Connection: close\r\n\r\n";
+        OutputStream out = socket.getOutputStream();
+        out.write(header.getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+    }
+}
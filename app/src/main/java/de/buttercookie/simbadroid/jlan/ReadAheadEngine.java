@@ -0,0 +1,331 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.filesys.server.filesys.NetworkFile;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Detects sequential reads of open files and reads the following part of the file in the
+ * background, so that the next request can usually be served from memory.
+ * <p>
+ * Each open file has at most two read-ahead windows: the one currently being consumed and the
+ * one following it. Window buffers come from a small pool shared by all files; if the pool is
+ * exhausted, files simply aren't read ahead until buffers become available again.
+ */
+class ReadAheadEngine {
+    private static final String LOGTAG = "ReadAheadEngine";
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int MIN_WINDOW_SIZE = 128 * 1024;
+    // Windows are sized as a multiple of the client's request size.
+    private static final int WINDOW_REQUEST_MULTIPLE = 4;
+    private static final int MAX_BUFFERS = 16;
+    private static final int MAX_POOLED_BUFFERS = 4;
+    // Number of consecutive sequential reads after which we start reading ahead.
+    private static final int SEQUENTIAL_THRESHOLD = 2;
+    private static final int THREADS = 2;
+
+    /**
+     * Reads file data for the read-ahead.
+     */
+    interface Source {
+        int read(byte[] buf, int bufPos, int len, long filePos) throws IOException;
+    }
+
+    public record Stats(long hits, long misses, long prefetchedBytes, long wastedBytes) {
+    }
+
+    // Statistics are kept for the lifetime of the process.
+    private static final AtomicLong sHits = new AtomicLong();
+    private static final AtomicLong sMisses = new AtomicLong();
+    private static final AtomicLong sPrefetchedBytes = new AtomicLong();
+    private static final AtomicLong sWastedBytes = new AtomicLong();
+
+    private static ExecutorService sExecutor;
+
+    private final Map<NetworkFile, Stream> mStreams = new ConcurrentHashMap<>();
+    private final BufferPool mBufferPool =
+            new BufferPool(BUFFER_SIZE, MAX_BUFFERS, MAX_POOLED_BUFFERS);
+
+    static Stats getStats() {
+        return new Stats(sHits.get(), sMisses.get(), sPrefetchedBytes.get(), sWastedBytes.get());
+    }
+
+    /**
+     * Try to serve a read from the file's read-ahead windows.
+     *
+     * @return The number of bytes read, or <code>-1</code> if the data has to be read from the
+     *         file itself.
+     */
+    int read(NetworkFile file, byte[] buf, int bufPos, int len, long filePos) {
+        Stream stream = mStreams.get(file);
+        if (stream == null) {
+            return -1;
+        }
+
+        int read = stream.read(buf, bufPos, len, filePos);
+        if (read >= 0) {
+            sHits.incrementAndGet();
+        } else if (stream.isSequential()) {
+            sMisses.incrementAndGet();
+        }
+        return read;
+    }
+
+    /**
+     * Record a completed read and start reading ahead if the file is being read sequentially.
+     *
+     * @param sourceSupplier Provides the source for reading ahead, may return <code>null</code>
+     *                       if the file can't be read in the background.
+     */
+    void onRead(NetworkFile file, long filePos, int len, int requested,
+                Supplier<Source> sourceSupplier) {
+        Stream stream = mStreams.get(file);
+        if (stream == null) {
+            stream = new Stream();
+            Stream existing = mStreams.putIfAbsent(file, stream);
+            if (existing != null) {
+                stream = existing;
+            }
+        }
+        stream.onRead(filePos, len, requested, sourceSupplier);
+    }
+
+    /**
+     * Drop all read-ahead data for the given share path, e.g. because it has been written to.
+     */
+    void invalidate(String path) {
+        for (Map.Entry<NetworkFile, Stream> entry : mStreams.entrySet()) {
+            String name = entry.getKey().getFullName();
+            if (name != null && name.equalsIgnoreCase(path)) {
+                entry.getValue().discardWindows();
+            }
+        }
+    }
+
+    void close(NetworkFile file) {
+        Stream stream = mStreams.remove(file);
+        if (stream != null) {
+            stream.discardWindows();
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(THREADS,
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("SimbaReadAhead-%d")
+                            .setDaemon(true)
+                            .build());
+        }
+        return sExecutor;
+    }
+
+    private final class Stream {
+        private long mNextPos;
+        private int mSequentialReads;
+        @Nullable
+        private Window mCurrent;
+        @Nullable
+        private Window mNext;
+
+        synchronized boolean isSequential() {
+            return mSequentialReads >= SEQUENTIAL_THRESHOLD;
+        }
+
+        synchronized int read(byte[] buf, int bufPos, int len, long filePos) {
+            if (mCurrent != null && !mCurrent.covers(filePos, len) && mNext != null &&
+                    mNext.covers(filePos, len)) {
+                // The client has moved on to the next window.
+                mCurrent.discard();
+                mCurrent = mNext;
+                mNext = null;
+            }
+            if (mCurrent == null && mNext != null && mNext.covers(filePos, len)) {
+                mCurrent = mNext;
+                mNext = null;
+            }
+            if (mCurrent == null || !mCurrent.covers(filePos, len)) {
+                return -1;
+            }
+
+            int read = mCurrent.read(buf, bufPos, len, filePos);
+            if (read < 0) {
+                // The background read failed.
+                mCurrent.discard();
+                mCurrent = null;
+            }
+            return read;
+        }
+
+        synchronized void onRead(long filePos, int len, int requested,
+                                 Supplier<Source> sourceSupplier) {
+            if (filePos == mNextPos) {
+                mSequentialReads++;
+            } else {
+                mSequentialReads = 0;
+                discardWindows();
+            }
+            mNextPos = filePos + Math.max(len, 0);
+
+            if (!isSequential() || len < requested || mNext != null) {
+                // Not sequential, at the end of the file or already reading ahead.
+                return;
+            }
+            long windowStart = mCurrent != null ? mCurrent.end() : mNextPos;
+            if (windowStart - mNextPos > (long) requested * WINDOW_REQUEST_MULTIPLE) {
+                // Still plenty of data left in the current window.
+                return;
+            }
+
+            Source source = sourceSupplier.get();
+            if (source == null) {
+                return;
+            }
+            byte[] buffer = mBufferPool.acquire();
+            if (buffer == null) {
+                return;
+            }
+            int windowSize = Math.max(MIN_WINDOW_SIZE,
+                    Math.min(requested * WINDOW_REQUEST_MULTIPLE, BUFFER_SIZE));
+            Window window = new Window(windowStart, buffer, windowSize);
+            window.start(source);
+            if (mCurrent == null) {
+                mCurrent = window;
+            } else {
+                mNext = window;
+            }
+        }
+
+        synchronized void discardWindows() {
+            if (mCurrent != null) {
+                mCurrent.discard();
+                mCurrent = null;
+            }
+            if (mNext != null) {
+                mNext.discard();
+                mNext = null;
+            }
+        }
+    }
+
+    private final class Window {
+        private final long mStart;
+        private final int mSize;
+        private byte[] mBuffer;
+        private Future<Integer> mFuture;
+        private boolean mDiscarded;
+        private boolean mLoaded;
+        // Number of valid bytes once loaded, -1 if reading failed.
+        private int mLength;
+        private long mServed;
+
+        Window(long start, byte[] buffer, int size) {
+            mStart = start;
+            mBuffer = buffer;
+            mSize = size;
+        }
+
+        long end() {
+            return mStart + (mLoaded && mLength >= 0 ? mLength : mSize);
+        }
+
+        void start(Source source) {
+            mFuture = getExecutor().submit(() -> load(source));
+        }
+
+        private int load(Source source) {
+            int length;
+            try {
+                length = source.read(mBuffer, 0, mSize, mStart);
+            } catch (IOException e) {
+                Log.d(LOGTAG, "Read-ahead failed", e);
+                length = -1;
+            }
+            synchronized (this) {
+                mLoaded = true;
+                mLength = length;
+                if (length > 0) {
+                    sPrefetchedBytes.addAndGet(length);
+                }
+                if (mDiscarded) {
+                    recycle();
+                }
+            }
+            return length;
+        }
+
+        /**
+         * Whether the window is expected to contain the given range. Windows reaching the end
+         * of the file also cover requests extending beyond it.
+         */
+        synchronized boolean covers(long filePos, int len) {
+            if (filePos < mStart) {
+                return false;
+            }
+            if (mLoaded && mLength >= 0 && mLength < mSize) {
+                return filePos <= mStart + mLength;
+            }
+            return filePos + len <= mStart + mSize;
+        }
+
+        int read(byte[] buf, int bufPos, int len, long filePos) {
+            try {
+                mFuture.get();
+            } catch (ExecutionException e) {
+                return -1;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+            synchronized (this) {
+                if (mDiscarded || mLength < 0) {
+                    return -1;
+                }
+                int offset = (int) (filePos - mStart);
+                int read = Math.max(0, Math.min(len, mLength - offset));
+                System.arraycopy(mBuffer, offset, buf, bufPos, read);
+                mServed += read;
+                return read;
+            }
+        }
+
+        synchronized void discard() {
+            if (mDiscarded) {
+                return;
+            }
+            mDiscarded = true;
+            if (mLoaded) {
+                recycle();
+            }
+        }
+
+        private void recycle() {
+            if (mLength > mServed) {
+                sWastedBytes.addAndGet(mLength - mServed);
+            }
+            if (mBuffer != null) {
+                mBufferPool.release(mBuffer);
+                mBuffer = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.util.Log;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Restores the last modified time of renamed files on volumes that don't reliably preserve it
+ * across renames.
+ * <p>
+ * Some volumes (e.g. removable SD cards) only keep the original last modified time in memory,
+ * while the on-disk file system still gets updated to the time of renaming. Forcing the correct
+ * time back to disk requires setting a differing value first, followed by the original one. As
+ * that is only needed to survive the next remount, fixups are collected and applied in batches
+ * in the background instead of on the request thread.
+ */
+class RenameTimestampFixups {
+    private static final String LOGTAG = "RenameTimestampFixups";
+
+    private static final long BATCH_DELAY_MS = 500;
+    private static final long FLUSH_OFFSET_MS = 42 * 1000;
+
+    // Native Linux file systems, which keep timestamps across renames. Everything else, in
+    // particular FUSE and sdcardfs on top of FAT-based removable storage, might be affected.
+    private static final Set<String> UNAFFECTED_FILE_SYSTEMS = new HashSet<>(Arrays.asList(
+            "ext2", "ext3", "ext4", "f2fs", "btrfs", "xfs", "tmpfs"));
+
+    private static ScheduledExecutorService sExecutor;
+
+    /**
+     * Notified once the timestamp of a file has been fixed.
+     */
+    interface Listener {
+        void onTimestampFixed(String name);
+    }
+
+    private record Fixup(String name, Path path, FileTime lastModified) {
+    }
+
+    private final boolean mCaseInsensitive;
+    private final Listener mListener;
+    private final Map<String, Fixup> mPending = new LinkedHashMap<>();
+    private boolean mBatchScheduled;
+
+    RenameTimestampFixups(boolean caseInsensitive, Listener listener) {
+        mCaseInsensitive = caseInsensitive;
+        mListener = listener;
+    }
+
+    /**
+     * Determine whether the volume at <code>root</code> needs its timestamps fixed after
+     * renaming. As affected volumes look fine until they are remounted, this can't be probed, so
+     * fixups stay enabled unless the volume's file system is known to preserve timestamps.
+     */
+    static boolean isNeeded(FileSystemProbe probe, String root) {
+        String type = probe.getFileSystemType(root);
+        boolean needed = type == null || !UNAFFECTED_FILE_SYSTEMS.contains(type);
+        Log.i(LOGTAG, root + " (" + type + ") " + (needed ? "needs" : "doesn't need") +
+                " timestamp fixes after renames");
+        return needed;
+    }
+
+    /**
+     * Restore the last modified time of a renamed file in the background.
+     *
+     * @param name The file's new path within the share.
+     * @param path The file's new path in the local file system.
+     */
+    synchronized void schedule(String name, Path path, FileTime lastModified) {
+        mPending.put(key(name), new Fixup(name, path, lastModified));
+        if (!mBatchScheduled) {
+            mBatchScheduled = true;
+            getExecutor().schedule(this::runAll, BATCH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Drop the pending fixup for the given file, e.g. because the file has since been modified.
+     */
+    synchronized void cancel(String name) {
+        if (!mPending.isEmpty()) {
+            mPending.remove(key(name));
+        }
+    }
+
+    /**
+     * Immediately apply the pending fixup for the given file, if any, e.g. because it is about
+     * to be renamed again.
+     */
+    void runNow(String name) {
+        Fixup fixup;
+        synchronized (this) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            fixup = mPending.remove(key(name));
+        }
+        if (fixup != null) {
+            apply(fixup);
+        }
+    }
+
+    /**
+     * Apply all pending fixups.
+     */
+    void runAll() {
+        List<Fixup> fixups;
+        synchronized (this) {
+            mBatchScheduled = false;
+            fixups = new ArrayList<>(mPending.values());
+            mPending.clear();
+        }
+        for (Fixup fixup : fixups) {
+            apply(fixup);
+        }
+    }
+
+    private void apply(Fixup fixup) {
+        try {
+            // Because the in-memory file system cache keeps reporting the original last modified
+            // date, we need to temporarily set a differing value in order to force-flush the
+            // correct time back to the on-disk file system.
+            Files.setLastModifiedTime(fixup.path(),
+                    FileTime.fromMillis(fixup.lastModified().toMillis() - FLUSH_OFFSET_MS));
+            Files.setLastModifiedTime(fixup.path(), fixup.lastModified());
+        } catch (NoSuchFileException e) {
+            // Deleted in the meantime.
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Couldn't restore last modified time of " + fixup.path(), e);
+        }
+        mListener.onTimestampFixed(fixup.name());
+    }
+
+    private String key(String name) {
+        return SharePath.normalize(name, mCaseInsensitive);
+    }
+
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("SimbaTimestampFixup-%d")
+                            .setDaemon(true)
+                            .build());
+        }
+        return sExecutor;
+    }
+}
@@ -0,0 +1,360 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import org.filesys.debug.DebugInterfaceBase;
+import org.filesys.server.config.ServerConfiguration;
+import org.springframework.extensions.config.ConfigElement;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * JFileServer debug output that never blocks the calling thread on I/O.
+ * <p>
+ * Messages are put into a fixed-size lock-free ring buffer and written to logcat or a rotating
+ * log file by a background thread. If the buffer is full, messages are dropped and a summary of
+ * the number of lost messages is written once space becomes available again.
+ * <p>
+ * Besides the global <code>logLevel</code>, the configuration element accepts
+ * <code>subsystem</code> children with a <code>prefix</code> attribute and a level as value,
+ * which apply to messages starting with that prefix (ignoring a leading <code>[...]</code>
+ * session tag), e.g. to only keep warnings from the NetBIOS code. Output goes to logcat unless a
+ * <code>file</code> child specifies the path of a log file, which is then rotated according to
+ * <code>maxFileSize</code> and <code>maxFiles</code>.
+ */
+public class RingBufferDebug extends DebugInterfaceBase {
+    private static final String LOGTAG = "JFileServer";
+
+    private static final int CAPACITY = 4096;
+    private static final long DEFAULT_MAX_FILE_SIZE = 1024 * 1024;
+    private static final int DEFAULT_MAX_FILES = 3;
+
+    private record Entry(long time, LogLevel level, String message) {
+    }
+
+    private record Subsystem(String prefix, LogLevel level) {
+    }
+
+    // Multi-producer, single-consumer bounded queue. A slot is free for the producer claiming
+    // position n once its sequence is n, and ready for the consumer once it is n + 1.
+    private final AtomicReferenceArray<Entry> mSlots = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLongArray mSequences = new AtomicLongArray(CAPACITY);
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private long mHead;
+
+    private final ThreadLocal<StringBuilder> mPartialLines =
+            ThreadLocal.withInitial(StringBuilder::new);
+
+    private final List<Subsystem> mSubsystems = new ArrayList<>();
+    // The most verbose of all configured levels, for rejecting messages without any lookup.
+    private LogLevel mMinLevel;
+
+    @Nullable
+    private File mLogFile;
+    private long mMaxFileSize = DEFAULT_MAX_FILE_SIZE;
+    private int mMaxFiles = DEFAULT_MAX_FILES;
+    @Nullable
+    private OutputStream mOutput;
+    // In bytes, to compare against the size limit.
+    private long mFileSize;
+
+    private volatile boolean mClosed;
+    private Thread mDrainer;
+    // Set while the drainer is about to park or parked, so producers only need to wake it then.
+    private volatile boolean mDrainerIdle;
+
+    public RingBufferDebug() {
+        for (int i = 0; i < CAPACITY; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    @Override
+    public void initialize(ConfigElement params, ServerConfiguration config) throws Exception {
+        super.initialize(params, config);
+        mMinLevel = getLogLevel();
+
+        if (params != null) {
+            List<ConfigElement> children = params.getChildren();
+            if (children != null) {
+                for (ConfigElement child : children) {
+                    if (child.getName().equals("subsystem")) {
+                        LogLevel level = LogLevel.valueOf(child.getValue());
+                        mSubsystems.add(new Subsystem(child.getAttribute("prefix"), level));
+                        if (level.compareTo(mMinLevel) < 0) {
+                            mMinLevel = level;
+                        }
+                    }
+                }
+            }
+            ConfigElement file = params.getChild("file");
+            if (file != null) {
+                mLogFile = new File(file.getValue());
+            }
+            ConfigElement maxFileSize = params.getChild("maxFileSize");
+            if (maxFileSize != null) {
+                mMaxFileSize = Long.parseLong(maxFileSize.getValue());
+            }
+            ConfigElement maxFiles = params.getChild("maxFiles");
+            if (maxFiles != null) {
+                mMaxFiles = Math.max(1, Integer.parseInt(maxFiles.getValue()));
+            }
+        }
+
+        mDrainer = new Thread(this::drain, "SimbaDebugLog");
+        mDrainer.setDaemon(true);
+        mDrainer.start();
+    }
+
+    @Override
+    public void debugPrint(String str, LogLevel level) {
+        if (isEnabled(level)) {
+            mPartialLines.get().append(str);
+        }
+    }
+
+    @Override
+    public void debugPrintln(String str, LogLevel level) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        StringBuilder partial = mPartialLines.get();
+        if (partial.length() > 0) {
+            str = partial.append(str).toString();
+            partial.setLength(0);
+        }
+        if (isEnabled(str, level)) {
+            offer(new Entry(System.currentTimeMillis(), level, str));
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (mDrainer == null) {
+            return;
+        }
+        // Wait for everything queued so far to be written.
+        long target = mTail.get();
+        LockSupport.unpark(mDrainer);
+        synchronized (this) {
+            while (!mClosed && mHead < target) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        if (mDrainer != null) {
+            LockSupport.unpark(mDrainer);
+            try {
+                mDrainer.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        super.close();
+    }
+
+    private boolean isEnabled(LogLevel level) {
+        return !mClosed && mMinLevel != null && level.compareTo(mMinLevel) >= 0;
+    }
+
+    private boolean isEnabled(String message, LogLevel level) {
+        if (!mSubsystems.isEmpty()) {
+            int start = 0;
+            if (message.startsWith("[")) {
+                int end = message.indexOf("] ");
+                if (end > 0) {
+                    start = end + 2;
+                }
+            }
+            for (Subsystem subsystem : mSubsystems) {
+                if (message.startsWith(subsystem.prefix(), start)) {
+                    return level.compareTo(subsystem.level()) >= 0;
+                }
+            }
+        }
+        return hasLogLevel(level);
+    }
+
+    private void offer(Entry entry) {
+        while (true) {
+            long pos = mTail.get();
+            int index = (int) (pos & (CAPACITY - 1));
+            long available = mSequences.get(index) - pos;
+            if (available == 0) {
+                if (mTail.compareAndSet(pos, pos + 1)) {
+                    mSlots.set(index, entry);
+                    mSequences.set(index, pos + 1);
+                    break;
+                }
+            } else if (available < 0) {
+                mDropped.incrementAndGet();
+                break;
+            }
+        }
+        if (mDrainerIdle) {
+            LockSupport.unpark(mDrainer);
+        }
+    }
+
+    private boolean hasEntries() {
+        int index = (int) (mHead & (CAPACITY - 1));
+        return mSequences.get(index) == mHead + 1 || mDropped.get() > 0;
+    }
+
+    @Nullable
+    private Entry poll() {
+        int index = (int) (mHead & (CAPACITY - 1));
+        if (mSequences.get(index) != mHead + 1) {
+            return null;
+        }
+        Entry entry = mSlots.getAndSet(index, null);
+        mSequences.set(index, mHead + CAPACITY);
+        mHead++;
+        return entry;
+    }
+
+    private void drain() {
+        SimpleDateFormat timeFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.ROOT);
+        while (true) {
+            boolean closed = mClosed;
+            synchronized (this) {
+                int written = 0;
+                Entry entry;
+                while ((entry = poll()) != null) {
+                    write(entry, timeFormat);
+                    written++;
+                }
+                long dropped = mDropped.getAndSet(0);
+                if (dropped > 0) {
+                    write(new Entry(System.currentTimeMillis(), LogLevel.Warn,
+                            "Debug output overflowed, dropped " + dropped + " messages"),
+                            timeFormat);
+                }
+                if (written > 0 || dropped > 0) {
+                    flushOutput();
+                }
+                // Wake up anybody waiting in flush().
+                notifyAll();
+            }
+            if (closed) {
+                break;
+            }
+            // Sleep until a producer or close() wakes us up. Setting the flag before checking
+            // for entries ensures that a producer sees it after publishing its entry.
+            mDrainerIdle = true;
+            if (!mClosed && !hasEntries()) {
+                LockSupport.park(this);
+            }
+            mDrainerIdle = false;
+        }
+        synchronized (this) {
+            closeOutput();
+            notifyAll();
+        }
+    }
+
+    private void write(Entry entry, SimpleDateFormat timeFormat) {
+        if (mLogFile == null) {
+            Log.println(toLogPriority(entry.level()), LOGTAG, entry.message());
+            return;
+        }
+
+        String line = timeFormat.format(new Date(entry.time())) + " " +
+                entry.level().name().charAt(0) + " " + entry.message() + "\n";
+        try {
+            if (mOutput == null || mFileSize >= mMaxFileSize) {
+                rotate();
+            }
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            mOutput.write(bytes);
+            mFileSize += bytes.length;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Couldn't write to " + mLogFile + ", using logcat instead", e);
+            closeOutput();
+            mLogFile = null;
+            Log.println(toLogPriority(entry.level()), LOGTAG, entry.message());
+        }
+    }
+
+    private void rotate() throws IOException {
+        closeOutput();
+        if (mLogFile.exists() && mLogFile.length() >= mMaxFileSize) {
+            for (int i = mMaxFiles - 1; i > 0; i--) {
+                File from = i > 1 ? new File(mLogFile.getPath() + "." + (i - 1)) : mLogFile;
+                File to = new File(mLogFile.getPath() + "." + i);
+                if (from.exists() && (!to.exists() || to.delete())) {
+                    from.renameTo(to);
+                }
+            }
+            if (mMaxFiles == 1) {
+                mLogFile.delete();
+            }
+        }
+        File parent = mLogFile.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        mFileSize = mLogFile.length();
+        mOutput = new BufferedOutputStream(new FileOutputStream(mLogFile, true));
+    }
+
+    private void flushOutput() {
+        if (mOutput != null) {
+            try {
+                mOutput.flush();
+            } catch (IOException e) {
+                Log.w(LOGTAG, "Couldn't flush " + mLogFile, e);
+            }
+        }
+    }
+
+    private void closeOutput() {
+        if (mOutput != null) {
+            try {
+                mOutput.close();
+            } catch (IOException e) {
+                Log.w(LOGTAG, "Couldn't close " + mLogFile, e);
+            }
+            mOutput = null;
+        }
+    }
+
+    private static int toLogPriority(LogLevel level) {
+        return switch (level) {
+            case Debug -> Log.DEBUG;
+            case Info -> Log.INFO;
+            case Warn -> Log.WARN;
+            default -> Log.ERROR;
+        };
+    }
+}
@@ -0,0 +1,353 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import androidx.annotation.Nullable;
+
+import org.filesys.server.SessionListener;
+import org.filesys.server.SrvSession;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide registry of file server metrics: per-share traffic and open files, operation
+ * counts and latencies, active sessions and the worker thread pool's queue depth.
+ * <p>
+ * Operations are counted at the disk driver level. Every SMB command that touches a share ends
+ * up as exactly one of these operations, whereas commands that don't (negotiation, session
+ * setup, tree connects, IPC$ requests) aren't visible here.
+ */
+public class ServerMetrics implements SessionListener {
+    public enum Op {
+        OPEN,
+        CREATE,
+        CLOSE,
+        READ,
+        WRITE,
+        FLUSH,
+        TRUNCATE,
+        SEARCH,
+        GET_INFO,
+        SET_INFO,
+        RENAME,
+        DELETE,
+        CREATE_DIRECTORY,
+        DELETE_DIRECTORY,
+    }
+
+    // Upper bounds of the latency histogram buckets, in microseconds.
+    private static final long[] LATENCY_BUCKETS_US = {
+            50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000,
+            1000000, 2500000,
+    };
+
+    public record ShareStats(String name, long bytesRead, long bytesWritten, int openFiles) {
+    }
+
+    /**
+     * @param bucketCounts Non-cumulative number of operations per latency bucket, the last one
+     *                     counting operations slower than the largest bucket bound.
+     */
+    public record OpStats(Op op, long count, long errors, long totalNanos, long[] bucketCounts) {
+        public long averageMicros() {
+            return count > 0 ? TimeUnit.NANOSECONDS.toMicros(totalNanos / count) : 0;
+        }
+    }
+
+    public record Snapshot(int sessions, int queueDepth, List<ShareStats> shares,
+                           List<OpStats> ops) {
+        public int openFiles() {
+            int total = 0;
+            for (ShareStats share : shares) {
+                total += share.openFiles();
+            }
+            return total;
+        }
+    }
+
+    private static final ServerMetrics sInstance = new ServerMetrics();
+
+    private final Map<String, Share> mShares = new ConcurrentHashMap<>();
+    private final Map<Op, Latency> mLatencies = new EnumMap<>(Op.class);
+    private final AtomicInteger mSessions = new AtomicInteger();
+    @Nullable
+    private volatile IntSupplier mQueueDepth;
+    @Nullable
+    private volatile LongSupplier mAnnounceDuration;
+
+    public static ServerMetrics get() {
+        return sInstance;
+    }
+
+    private ServerMetrics() {
+        for (Op op : Op.values()) {
+            mLatencies.put(op, new Latency());
+        }
+    }
+
+    /**
+     * @return A timestamp to pass to {@link #endOp} once the operation has completed.
+     */
+    long startOp() {
+        return System.nanoTime();
+    }
+
+    void endOp(Op op, long start, boolean success) {
+        mLatencies.get(op).record(System.nanoTime() - start, success);
+    }
+
+    void onBytesRead(String share, long count) {
+        if (count > 0) {
+            getShare(share).mBytesRead.addAndGet(count);
+        }
+    }
+
+    void onBytesWritten(String share, long count) {
+        if (count > 0) {
+            getShare(share).mBytesWritten.addAndGet(count);
+        }
+    }
+
+    void onFileOpened(String share) {
+        getShare(share).mOpenFiles.incrementAndGet();
+    }
+
+    void onFileClosed(String share) {
+        getShare(share).mOpenFiles.decrementAndGet();
+    }
+
+    void setQueueDepthSource(@Nullable IntSupplier queueDepth) {
+        mQueueDepth = queueDepth;
+    }
+
+    /**
+     * @param announceDuration Returns how long the last mDNS announcement took in milliseconds,
+     *                         or a negative value if unknown.
+     */
+    public void setAnnounceDurationSource(@Nullable LongSupplier announceDuration) {
+        mAnnounceDuration = announceDuration;
+    }
+
+    @Override
+    public void sessionCreated(SrvSession sess) {
+        mSessions.incrementAndGet();
+    }
+
+    @Override
+    public void sessionClosed(SrvSession sess) {
+        mSessions.decrementAndGet();
+    }
+
+    @Override
+    public void sessionLoggedOn(SrvSession sess) {
+    }
+
+    public Snapshot snapshot() {
+        List<ShareStats> shares = new ArrayList<>();
+        for (Map.Entry<String, Share> entry : mShares.entrySet()) {
+            Share share = entry.getValue();
+            shares.add(new ShareStats(entry.getKey(), share.mBytesRead.get(),
+                    share.mBytesWritten.get(), share.mOpenFiles.get()));
+        }
+        Collections.sort(shares, (a, b) -> a.name().compareTo(b.name()));
+
+        List<OpStats> ops = new ArrayList<>();
+        for (Map.Entry<Op, Latency> entry : mLatencies.entrySet()) {
+            ops.add(entry.getValue().snapshot(entry.getKey()));
+        }
+
+        IntSupplier queueDepth = mQueueDepth;
+        return new Snapshot(Math.max(0, mSessions.get()),
+                queueDepth != null ? queueDepth.getAsInt() : 0, shares, ops);
+    }
+
+    /**
+     * @return The current metrics in the Prometheus text exposition format.
+     */
+    public String toPrometheusText() {
+        Snapshot snapshot = snapshot();
+        StringBuilder sb = new StringBuilder();
+
+        gauge(sb, "simbadroid_sessions", "Active SMB sessions", snapshot.sessions());
+        gauge(sb, "simbadroid_thread_pool_queue_depth",
+                "Requests waiting for a worker thread", snapshot.queueDepth());
+
+        header(sb, "simbadroid_share_read_bytes_total", "Bytes read from a share", "counter");
+        for (ShareStats share : snapshot.shares()) {
+            sample(sb, "simbadroid_share_read_bytes_total", shareLabel(share),
+                    share.bytesRead());
+        }
+        header(sb, "simbadroid_share_written_bytes_total", "Bytes written to a share",
+                "counter");
+        for (ShareStats share : snapshot.shares()) {
+            sample(sb, "simbadroid_share_written_bytes_total", shareLabel(share),
+                    share.bytesWritten());
+        }
+        header(sb, "simbadroid_share_open_files", "Files currently open on a share", "gauge");
+        for (ShareStats share : snapshot.shares()) {
+            sample(sb, "simbadroid_share_open_files", shareLabel(share), share.openFiles());
+        }
+
+        header(sb, "simbadroid_op_errors_total", "Failed file operations", "counter");
+        for (OpStats op : snapshot.ops()) {
+            sample(sb, "simbadroid_op_errors_total", opLabel(op), op.errors());
+        }
+        header(sb, "simbadroid_op_duration_seconds", "File operation latency", "histogram");
+        for (OpStats op : snapshot.ops()) {
+            long cumulative = 0;
+            for (int i = 0; i < LATENCY_BUCKETS_US.length; i++) {
+                cumulative += op.bucketCounts()[i];
+                sample(sb, "simbadroid_op_duration_seconds_bucket", opLabel(op) +
+                        ",le=\"" + seconds(TimeUnit.MICROSECONDS.toNanos(LATENCY_BUCKETS_US[i])) +
+                        "\"", cumulative);
+            }
+            cumulative += op.bucketCounts()[LATENCY_BUCKETS_US.length];
+            sample(sb, "simbadroid_op_duration_seconds_bucket", opLabel(op) + ",le=\"+Inf\"",
+                    cumulative);
+            sb.append("simbadroid_op_duration_seconds_sum{").append(opLabel(op)).append("} ")
+                    .append(seconds(op.totalNanos())).append('\n');
+            sample(sb, "simbadroid_op_duration_seconds_count", opLabel(op), cumulative);
+        }
+
+        ReadAheadEngine.Stats readAhead = ReadAheadEngine.getStats();
+        counter(sb, "simbadroid_read_ahead_hits_total", "Reads served from read-ahead",
+                readAhead.hits());
+        counter(sb, "simbadroid_read_ahead_wasted_bytes_total",
+                "Read-ahead bytes never requested", readAhead.wastedBytes());
+        WriteBehindCache.Stats writeBehind = WriteBehindCache.getStats();
+        counter(sb, "simbadroid_write_behind_writes_total", "Writes buffered for coalescing",
+                writeBehind.bufferedWrites());
+        counter(sb, "simbadroid_write_behind_flushes_total", "Coalesced writes to the file system",
+                writeBehind.flushes());
+
+        AdaptiveMemoryPoolPolicy.BucketEstimate[] pool = AdaptiveMemoryPoolPolicy.getEstimates();
+        header(sb, "simbadroid_memory_pool_requests_total",
+                "File I/O requests by estimated memory pool bucket usage", "counter");
+        for (AdaptiveMemoryPoolPolicy.BucketEstimate bucket : pool) {
+            sample(sb, "simbadroid_memory_pool_requests_total",
+                    bucketLabel(bucket) + ",usage=\"within_initial\"", bucket.withinInitial());
+            sample(sb, "simbadroid_memory_pool_requests_total",
+                    bucketLabel(bucket) + ",usage=\"beyond_initial\"", bucket.beyondInitial());
+            sample(sb, "simbadroid_memory_pool_requests_total",
+                    bucketLabel(bucket) + ",usage=\"beyond_max\"", bucket.beyondMax());
+        }
+        header(sb, "simbadroid_memory_pool_peak_in_flight",
+                "Peak concurrent file I/O requests per memory pool bucket", "gauge");
+        for (AdaptiveMemoryPoolPolicy.BucketEstimate bucket : pool) {
+            sample(sb, "simbadroid_memory_pool_peak_in_flight", bucketLabel(bucket),
+                    bucket.peakInFlight());
+        }
+
+        LongSupplier announceDuration = mAnnounceDuration;
+        long announceMs = announceDuration != null ? announceDuration.getAsLong() : -1;
+        if (announceMs >= 0) {
+            header(sb, "simbadroid_mdns_announce_duration_seconds",
+                    "Time the last mDNS responder took to probe and announce", "gauge");
+            sb.append("simbadroid_mdns_announce_duration_seconds ")
+                    .append(seconds(TimeUnit.MILLISECONDS.toNanos(announceMs))).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private Share getShare(String name) {
+        Share share = mShares.get(name);
+        if (share == null) {
+            share = new Share();
+            Share existing = mShares.putIfAbsent(name, share);
+            if (existing != null) {
+                share = existing;
+            }
+        }
+        return share;
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, help, "gauge");
+        sample(sb, name, null, value);
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, help, "counter");
+        sample(sb, name, null, value);
+    }
+
+    private static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, @Nullable String labels,
+                               long value) {
+        sb.append(name);
+        if (labels != null) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static String shareLabel(ShareStats share) {
+        return "share=\"" + share.name().replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static String opLabel(OpStats op) {
+        return "op=\"" + op.op().name().toLowerCase(Locale.ROOT) + "\"";
+    }
+
+    private static String bucketLabel(AdaptiveMemoryPoolPolicy.BucketEstimate bucket) {
+        return "buffer_size=\"" + (bucket.bufferSize() == Integer.MAX_VALUE ?
+                "+Inf" : String.valueOf(bucket.bufferSize())) + "\"";
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+    }
+
+    private static class Share {
+        final AtomicLong mBytesRead = new AtomicLong();
+        final AtomicLong mBytesWritten = new AtomicLong();
+        final AtomicInteger mOpenFiles = new AtomicInteger();
+    }
+
+    private static class Latency {
+        final AtomicLong mCount = new AtomicLong();
+        final AtomicLong mErrors = new AtomicLong();
+        final AtomicLong mTotalNanos = new AtomicLong();
+        final AtomicLongArray mBuckets = new AtomicLongArray(LATENCY_BUCKETS_US.length + 1);
+
+        void record(long nanos, boolean success) {
+            mCount.incrementAndGet();
+            if (!success) {
+                mErrors.incrementAndGet();
+            }
+            mTotalNanos.addAndGet(nanos);
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKETS_US.length && micros > LATENCY_BUCKETS_US[bucket]) {
+                bucket++;
+            }
+            mBuckets.incrementAndGet(bucket);
+        }
+
+        OpStats snapshot(Op op) {
+            long[] buckets = new long[mBuckets.length()];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = mBuckets.get(i);
+            }
+            return new OpStats(op, mCount.get(), mErrors.get(), mTotalNanos.get(), buckets);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import java.util.Locale;
+
+/**
+ * Helpers for share-relative SMB paths, i.e. paths like <code>\dir\file</code>.
+ */
+final class SharePath {
+    static final char SEPARATOR = '\\';
+    static final String ROOT = "\\";
+
+    private SharePath() {}
+
+    /**
+     * @return A canonical form of the path that is suitable as a cache key.
+     */
+    static String normalize(String path, boolean caseInsensitive) {
+        String key = path.replace('/', SEPARATOR);
+        if (key.length() > 1 && key.charAt(key.length() - 1) == SEPARATOR) {
+            key = key.substring(0, key.length() - 1);
+        }
+        if (key.isEmpty() || key.charAt(0) != SEPARATOR) {
+            key = SEPARATOR + key;
+        }
+        return caseInsensitive ? key.toLowerCase(Locale.ROOT) : key;
+    }
+
+    static String parentOf(String path) {
+        int sep = path.lastIndexOf(SEPARATOR);
+        return sep > 0 ? path.substring(0, sep) : ROOT;
+    }
+
+    static String nameOf(String path) {
+        return path.substring(path.lastIndexOf(SEPARATOR) + 1);
+    }
+
+    static String child(String dir, String name) {
+        return dir.equals(ROOT) ? ROOT + name : dir + SEPARATOR + name;
+    }
+}
@@ -4,37 +4,226 @@
 
 package de.buttercookie.simbadroid.jlan;
 
-import android.system.ErrnoException;
-import android.system.Os;
-import android.system.StructStat;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
+import org.filesys.server.SrvSession;
 import org.filesys.server.core.DeviceContextException;
+import org.filesys.server.filesys.NotifyAction;
+import org.filesys.smb.server.notify.NotifyChangeHandler;
 import org.filesys.smb.server.disk.JavaNIODeviceContext;
 import org.springframework.extensions.config.ConfigElement;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SimbaDiskDeviceContext extends JavaNIODeviceContext {
     private static final String LOGTAG = "SimbaDiskDeviceContext";
 
-    public SimbaDiskDeviceContext(String name, ConfigElement args) throws DeviceContextException {
+    // Windows Explorer polls the free space a lot, so don't hit the file system every time.
+    private static final long SPACE_INFO_TTL_NS = TimeUnit.SECONDS.toNanos(2);
+    // Refresh the free space early once this much data has been written through the driver.
+    private static final long SPACE_INFO_WRITE_THRESHOLD = 4 * 1024 * 1024;
+
+    private final FileSystemProbe mProbe;
+    private final FileInfoCache mFileInfoCache;
+    private final DirectorySnapshotCache mDirectorySnapshots;
+    @Nullable
+    private final RenameTimestampFixups mRenameTimestampFixups;
+    private final boolean mCaseInsensitive;
+    @Nullable
+    private volatile ChangeWatcher mChangeWatcher;
+
+    private FileSystemProbe.SpaceInfo mSpaceInfo;
+    private long mSpaceInfoTimestamp;
+    private final AtomicLong mBytesWrittenSinceSpaceInfo = new AtomicLong();
+
+    public SimbaDiskDeviceContext(String name, ConfigElement args, FileSystemProbe probe)
+            throws DeviceContextException {
         super(name, args);
+        mProbe = probe;
+        boolean caseInsensitive = args.getChild("DiskIsCaseInsensitive") != null;
+        mCaseInsensitive = caseInsensitive;
+        mFileInfoCache = new FileInfoCache(caseInsensitive);
+        mDirectorySnapshots = new DirectorySnapshotCache(caseInsensitive);
+        mRenameTimestampFixups = RenameTimestampFixups.isNeeded(probe, getDeviceName()) ?
+                new RenameTimestampFixups(caseInsensitive, this::onPathChanged) : null;
     }
 
     @Override
     protected boolean isTrashcanOnSameVolume(File rootDir, File trashCan) {
         boolean result;
         try {
-            StructStat rootStat = Os.stat(rootDir.getAbsolutePath());
-            StructStat trashStat = Os.stat(trashCan.getAbsolutePath());
-            result = rootStat.st_dev == trashStat.st_dev;
-        } catch (ErrnoException e) {
+            result = probe().getDeviceId(rootDir.getAbsolutePath()) ==
+                    probe().getDeviceId(trashCan.getAbsolutePath());
+        } catch (IOException e) {
             result = false;
         }
         return result;
     }
 
+    private FileSystemProbe probe() {
+        // The super constructor already checks the trashcan location before our own constructor
+        // had a chance to run.
+        return mProbe != null ? mProbe : new AndroidFileSystemProbe();
+    }
+
+    FileInfoCache getFileInfoCache() {
+        return mFileInfoCache;
+    }
+
+    DirectorySnapshotCache getDirectorySnapshots() {
+        return mDirectorySnapshots;
+    }
+
+    /**
+     * @return The pending timestamp fixups for renamed files, or <code>null</code> if this share's
+     *         volume preserves last modified times across renames by itself.
+     */
+    @Nullable
+    RenameTimestampFixups getRenameTimestampFixups() {
+        return mRenameTimestampFixups;
+    }
+
+    void flushRenameTimestampFixups() {
+        if (mRenameTimestampFixups != null) {
+            mRenameTimestampFixups.runAll();
+        }
+    }
+
+    /**
+     * Drop cached information about a file or directory that has been created, modified or
+     * deleted through the driver.
+     */
+    void onPathChanged(String path) {
+        ChangeWatcher watcher = mChangeWatcher;
+        if (watcher != null) {
+            watcher.onOwnChange(path);
+        }
+        invalidatePath(path);
+    }
+
+    private void invalidatePath(String path) {
+        mFileInfoCache.invalidate(path);
+        mDirectorySnapshots.invalidate(SharePath.parentOf(path));
+    }
+
+    /**
+     * Drop cached information about a directory and everything below it, e.g. after the
+     * directory has been renamed or deleted.
+     */
+    void onTreeChanged(String path) {
+        ChangeWatcher watcher = mChangeWatcher;
+        if (watcher != null) {
+            watcher.onOwnChange(path);
+        }
+        invalidateTree(path);
+    }
+
+    private void invalidateTree(String path) {
+        mFileInfoCache.invalidateTree(path);
+        mDirectorySnapshots.invalidateTree(path);
+        mDirectorySnapshots.invalidate(SharePath.parentOf(path));
+    }
+
+    /**
+     * Watch a directory a client has opened for changes made outside of the server, if change
+     * notifications are enabled for this share. Clients can only subscribe to changes of a
+     * directory they hold a handle to.
+     */
+    void onDirectoryOpened(@Nullable SrvSession sess, String dirPath) {
+        if (!hasChangeHandler()) {
+            return;
+        }
+        ChangeWatcher watcher = mChangeWatcher;
+        if (watcher == null) {
+            synchronized (this) {
+                watcher = mChangeWatcher;
+                if (watcher == null) {
+                    watcher = new ChangeWatcher(getDeviceName(), mCaseInsensitive,
+                            this::onExternalChange);
+                    mChangeWatcher = watcher;
+                }
+            }
+        }
+        watcher.onDirectoryOpened(sessionId(sess), dirPath);
+    }
+
+    void onDirectoryClosed(@Nullable SrvSession sess, String dirPath) {
+        ChangeWatcher watcher = mChangeWatcher;
+        if (watcher != null) {
+            watcher.onDirectoryClosed(sessionId(sess), dirPath);
+        }
+    }
+
+    void onSessionClosed(SrvSession sess) {
+        ChangeWatcher watcher = mChangeWatcher;
+        if (watcher != null) {
+            watcher.onSessionClosed(sessionId(sess));
+        }
+    }
+
+    private static int sessionId(@Nullable SrvSession sess) {
+        return sess != null ? sess.getSessionId() : 0;
+    }
+
+    private void onExternalChange(NotifyAction action, String path, boolean isDirectory) {
+        if (isDirectory) {
+            invalidateTree(path);
+        } else {
+            invalidatePath(path);
+        }
+        if (!hasChangeHandler()) {
+            return;
+        }
+        NotifyChangeHandler changeHandler = getChangeHandler();
+        if (isDirectory) {
+            changeHandler.notifyDirectoryChanged(action, path);
+        } else {
+            changeHandler.notifyFileChanged(action, path);
+        }
+    }
+
+    @Override
+    public void CloseContext() {
+        ChangeWatcher watcher = mChangeWatcher;
+        if (watcher != null) {
+            watcher.close();
+            mChangeWatcher = null;
+        }
+        super.CloseContext();
+    }
+
+    /**
+     * @return The size and free space of the share's file system, possibly cached.
+     */
+    synchronized FileSystemProbe.SpaceInfo getSpaceInfo() {
+        long now = System.nanoTime();
+        if (mSpaceInfo == null || now - mSpaceInfoTimestamp > SPACE_INFO_TTL_NS) {
+            mBytesWrittenSinceSpaceInfo.set(0);
+            mSpaceInfo = probe().getSpaceInfo(getDeviceName());
+            mSpaceInfoTimestamp = now;
+        }
+        return mSpaceInfo;
+    }
+
+    /**
+     * Force the next {@link #getSpaceInfo()} call to query the file system again, e.g. because
+     * files have been deleted or truncated.
+     */
+    synchronized void invalidateSpaceInfo() {
+        mSpaceInfo = null;
+    }
+
+    void onBytesWritten(long count) {
+        if (mBytesWrittenSinceSpaceInfo.addAndGet(count) >= SPACE_INFO_WRITE_THRESHOLD) {
+            invalidateSpaceInfo();
+        }
+    }
+
     public void removeTrashcanFolderIfEmpty() {
         if (hasTrashFolder()) {
             if (!getTrashFolder().delete()) {
@@ -4,46 +4,453 @@
 
 package de.buttercookie.simbadroid.jlan;
 
-import android.os.StatFs;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import org.filesys.server.SrvSession;
-import org.filesys.server.core.DeviceContext;
 import org.filesys.server.core.DeviceContextException;
 import org.filesys.server.filesys.DiskDeviceContext;
 import org.filesys.server.filesys.DiskSizeInterface;
+import org.filesys.server.filesys.FileInfo;
 import org.filesys.server.filesys.FileName;
+import org.filesys.server.filesys.FileOpenParams;
 import org.filesys.server.filesys.NetworkFile;
+import org.filesys.server.filesys.SearchContext;
+import org.filesys.server.filesys.SearchFlags;
 import org.filesys.server.filesys.SrvDiskInfo;
 import org.filesys.server.filesys.TreeConnection;
 import org.filesys.smb.server.disk.JavaNIODeviceContext;
 import org.filesys.smb.server.disk.JavaNIODiskDriver;
+import org.filesys.smb.server.disk.NioNetworkFileChannels;
 import org.springframework.extensions.config.ConfigElement;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class SimbaDiskDriver extends JavaNIODiskDriver implements DiskSizeInterface {
     private static final String LOGTAG = "SimbaDiskDriver";
 
     private static final int BLOCK_SIZE = 512;
+    private static final int DIRECT_READ_ALIGNMENT = 4096;
+
+    // Stat the entries of directories at least this large from multiple threads in parallel, as
+    // each stat can take a while when going through FUSE.
+    private static final int PARALLEL_STAT_THRESHOLD = 256;
+    private static final int STAT_THREADS = 4;
+
+    private static ExecutorService sStatExecutor;
+
+    private final AdaptiveMemoryPoolPolicy mMemoryPoolPolicy;
+    private final FileSystemProbe mProbe;
+    private final ReadAheadEngine mReadAhead = new ReadAheadEngine();
+
+    private volatile int mDirectReadThreshold;
+    @Nullable
+    private volatile WriteBehindCache mWriteBehind;
+
+    SimbaDiskDriver(AdaptiveMemoryPoolPolicy memoryPoolPolicy) {
+        this(memoryPoolPolicy, new AndroidFileSystemProbe());
+    }
+
+    SimbaDiskDriver(AdaptiveMemoryPoolPolicy memoryPoolPolicy, FileSystemProbe probe) {
+        mMemoryPoolPolicy = memoryPoolPolicy;
+        mProbe = probe;
+    }
+
+    /**
+     * Serve page-aligned reads of at least <code>threshold</code> bytes through a
+     * {@link DirectFileReader}. A threshold of <code>0</code> disables direct reads.
+     */
+    void setDirectReadThreshold(int threshold) {
+        mDirectReadThreshold = threshold;
+    }
+
+    /**
+     * Coalesce small writes in per-file buffers of the given size. A size of <code>0</code>
+     * disables write-behind buffering.
+     */
+    void setWriteBehindBufferSize(int size) {
+        mWriteBehind = size > 0 ? new WriteBehindCache(size) : null;
+    }
 
     @Override
     public void getDiskInformation(DiskDeviceContext ctx, SrvDiskInfo diskDev) {
-        StatFs statFs = new StatFs(ctx.getDeviceName());
+        FileSystemProbe.SpaceInfo spaceInfo = ctx instanceof SimbaDiskDeviceContext simbaCtx ?
+                simbaCtx.getSpaceInfo() : mProbe.getSpaceInfo(ctx.getDeviceName());
 
         diskDev.setBlockSize(BLOCK_SIZE);
-        diskDev.setBlocksPerAllocationUnit(statFs.getBlockSizeLong() / BLOCK_SIZE);
-        diskDev.setTotalUnits(statFs.getBlockCountLong());
-        diskDev.setFreeUnits(statFs.getAvailableBlocksLong());
+        diskDev.setBlocksPerAllocationUnit(spaceInfo.blockSize() / BLOCK_SIZE);
+        diskDev.setTotalUnits(spaceInfo.totalBlocks());
+        diskDev.setFreeUnits(spaceInfo.availableBlocks());
+    }
+
+    @Override
+    public int readFile(SrvSession sess, TreeConnection tree, NetworkFile file, byte[] buf,
+                        int bufPos, int siz, long filePos) throws IOException {
+        int poolToken = mMemoryPoolPolicy.acquireIo(siz);
+        try {
+            flushPendingWrites(file.getFullName());
+            int read = mReadAhead.read(file, buf, bufPos, siz, filePos);
+            if (read < 0) {
+                read = readFromFile(sess, tree, file, buf, bufPos, siz, filePos);
+            }
+            mReadAhead.onRead(file, filePos, read, siz, () -> getDirectReader(file));
+            return read;
+        } finally {
+            mMemoryPoolPolicy.releaseIo(poolToken);
+        }
+    }
+
+    private int readFromFile(SrvSession sess, TreeConnection tree, NetworkFile file, byte[] buf,
+                             int bufPos, int siz, long filePos) throws IOException {
+        if (isDirectRead(file, siz, filePos)) {
+            DirectFileReader reader = getDirectReader(file);
+            if (reader != null) {
+                return reader.read(buf, bufPos, siz, filePos);
+            }
+        }
+        return super.readFile(sess, tree, file, buf, bufPos, siz, filePos);
+    }
+
+    private boolean isDirectRead(NetworkFile file, int siz, long filePos) {
+        int threshold = mDirectReadThreshold;
+        return threshold > 0 && siz >= threshold && (filePos % DIRECT_READ_ALIGNMENT) == 0 &&
+                !file.isDirectory();
+    }
+
+    /**
+     * @return A reader for the open file, or <code>null</code> if the file hasn't been opened
+     *         for I/O yet, in which case the regular read path takes care of that.
+     */
+    @Nullable
+    private static DirectFileReader getDirectReader(NetworkFile file) {
+        FileChannel channel = NioNetworkFileChannels.getChannel(file);
+        return channel != null ? new DirectFileReader(channel) : null;
+    }
+
+    @Override
+    public int writeFile(SrvSession sess, TreeConnection tree, NetworkFile file, byte[] buf,
+                         int bufoff, int siz, long fileoff) throws IOException {
+        int poolToken = mMemoryPoolPolicy.acquireIo(siz);
+        try {
+            WriteBehindCache writeBehind = mWriteBehind;
+            int written;
+            WriteBehindCache.Sink sink = (data, pos, len, offset) ->
+                    writeThrough(sess, tree, file, data, pos, len, offset);
+            if (writeBehind != null &&
+                    writeBehind.write(file, buf, bufoff, siz, fileoff, sink)) {
+                written = siz;
+                // Account for the write right away, so that queries on the open file see the
+                // new size even before the data has reached the file.
+                file.incrementWriteCount();
+                if (fileoff + siz > file.getFileSize()) {
+                    file.setFileSize(fileoff + siz);
+                }
+            } else {
+                written = writeThrough(sess, tree, file, buf, bufoff, siz, fileoff);
+            }
+            SimbaDiskDeviceContext context = getContext(tree);
+            context.onPathChanged(file.getFullName());
+            cancelTimestampFixup(context, file.getFullName());
+            return written;
+        } finally {
+            mMemoryPoolPolicy.releaseIo(poolToken);
+        }
+    }
+
+    private int writeThrough(SrvSession sess, TreeConnection tree, NetworkFile file, byte[] buf,
+                             int bufoff, int siz, long fileoff) throws IOException {
+        int written = super.writeFile(sess, tree, file, buf, bufoff, siz, fileoff);
+        mReadAhead.invalidate(file.getFullName());
+        getContext(tree).onBytesWritten(written);
+        return written;
+    }
+
+    @Override
+    public void flushFile(SrvSession sess, TreeConnection tree, NetworkFile file)
+            throws IOException {
+        WriteBehindCache writeBehind = mWriteBehind;
+        if (writeBehind != null) {
+            writeBehind.flush(file);
+        }
+        super.flushFile(sess, tree, file);
+    }
+
+    /**
+     * Make sure that all data written to the given path has actually reached the file.
+     */
+    private void flushPendingWrites(String path) throws IOException {
+        WriteBehindCache writeBehind = mWriteBehind;
+        if (writeBehind != null) {
+            writeBehind.flushPath(path);
+        }
+    }
+
+    @Override
+    public void truncateFile(SrvSession sess, TreeConnection tree, NetworkFile file, long siz)
+            throws IOException {
+        flushPendingWrites(file.getFullName());
+        super.truncateFile(sess, tree, file, siz);
+        mReadAhead.invalidate(file.getFullName());
+        SimbaDiskDeviceContext context = getContext(tree);
+        cancelTimestampFixup(context, file.getFullName());
+        context.onPathChanged(file.getFullName());
+        context.invalidateSpaceInfo();
+    }
+
+    @Override
+    public void deleteFile(SrvSession sess, TreeConnection tree, String name)
+            throws IOException {
+        SimbaDiskDeviceContext context = getContext(tree);
+        flushPendingWrites(name);
+        cancelTimestampFixup(context, name);
+        try {
+            super.deleteFile(sess, tree, name);
+        } finally {
+            context.onPathChanged(name);
+        }
+        context.invalidateSpaceInfo();
+    }
+
+    @Override
+    public void deleteDirectory(SrvSession sess, TreeConnection tree, String dir)
+            throws IOException {
+        SimbaDiskDeviceContext context = getContext(tree);
+        try {
+            super.deleteDirectory(sess, tree, dir);
+        } finally {
+            context.onTreeChanged(dir);
+        }
+        context.invalidateSpaceInfo();
+    }
+
+    @Override
+    public SearchContext startSearch(SrvSession sess, TreeConnection tree, String searchPath,
+                                     int attrib, EnumSet<SearchFlags> flags)
+            throws FileNotFoundException {
+        String path = searchPath.replace('/', SharePath.SEPARATOR);
+        String pattern = SharePath.nameOf(path);
+        if (!pattern.equals("*") && !pattern.equals("*.*")) {
+            // Only listings of a whole directory are worth snapshotting.
+            return super.startSearch(sess, tree, searchPath, attrib, flags);
+        }
+
+        String dirPath = SharePath.parentOf(path);
+        SimbaDiskDeviceContext context = getContext(tree);
+        List<FileInfo> snapshot;
+        try {
+            snapshot = context.getDirectorySnapshots().get(dirPath,
+                    () -> loadDirectory(sess, tree, context, dirPath));
+        } catch (IOException e) {
+            // E.g. the directory name needs case mapping - let the default implementation handle
+            // all the special cases.
+            return super.startSearch(sess, tree, searchPath, attrib, flags);
+        }
+        return new SnapshotSearchContext(snapshot, attrib);
+    }
+
+    /**
+     * Read all entries of a directory together with their attributes, stat-ing the entries of
+     * large directories in parallel.
+     */
+    private List<FileInfo> loadDirectory(SrvSession sess, TreeConnection tree,
+                                         SimbaDiskDeviceContext context, String dirPath)
+            throws IOException {
+        Path dir = Paths.get(FileName.buildPath(
+                context.getDeviceName(), dirPath, null, java.io.File.separatorChar));
+        Path trashcan = context.hasTrashFolder() ? context.getTrashFolder().toPath() : null;
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                if (!entry.equals(trashcan)) {
+                    names.add(entry.getFileName().toString());
+                }
+            }
+        }
+
+        final FileInfo[] infos = new FileInfo[names.size()];
+        if (names.size() < PARALLEL_STAT_THRESHOLD) {
+            statEntries(sess, tree, context, dirPath, names, infos, 0, names.size());
+        } else {
+            List<Callable<Void>> chunks = new ArrayList<>();
+            int chunkSize = (names.size() + STAT_THREADS - 1) / STAT_THREADS;
+            for (int start = 0; start < names.size(); start += chunkSize) {
+                final int from = start;
+                final int to = Math.min(start + chunkSize, names.size());
+                chunks.add(() -> {
+                    statEntries(sess, tree, context, dirPath, names, infos, from, to);
+                    return null;
+                });
+            }
+            try {
+                for (Future<Void> chunk : getStatExecutor().invokeAll(chunks)) {
+                    chunk.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading " + dirPath);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException ioException) {
+                    throw ioException;
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+
+        List<FileInfo> snapshot = new ArrayList<>(infos.length);
+        for (FileInfo info : infos) {
+            // Entries deleted while we were reading the directory are skipped.
+            if (info != null) {
+                snapshot.add(info);
+            }
+        }
+        return Collections.unmodifiableList(snapshot);
+    }
+
+    private void statEntries(SrvSession sess, TreeConnection tree,
+                             SimbaDiskDeviceContext context, String dirPath, List<String> names,
+                             FileInfo[] infos, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            String name = names.get(i);
+            String path = SharePath.child(dirPath, name);
+            FileInfo info;
+            try {
+                // Don't cache sizes that are about to change.
+                flushPendingWrites(path);
+                info = super.getFileInformation(sess, tree, path);
+            } catch (FileNotFoundException | NoSuchFileException e) {
+                info = null;
+            }
+            if (info != null) {
+                info.setFileName(name);
+                context.getFileInfoCache().put(path, info);
+            }
+            infos[i] = info;
+        }
+    }
+
+    private static synchronized ExecutorService getStatExecutor() {
+        if (sStatExecutor == null) {
+            sStatExecutor = Executors.newFixedThreadPool(STAT_THREADS,
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("SimbaStat-%d")
+                            .setDaemon(true)
+                            .build());
+        }
+        return sStatExecutor;
+    }
+
+    @Override
+    public FileInfo getFileInformation(SrvSession sess, TreeConnection tree, String name)
+            throws IOException {
+        FileInfoCache cache = getContext(tree).getFileInfoCache();
+        FileInfo info = cache.get(name);
+        if (info == null) {
+            flushPendingWrites(name);
+            info = super.getFileInformation(sess, tree, name);
+            if (info != null) {
+                cache.put(name, info);
+            }
+        }
+        return info;
+    }
+
+    @Override
+    public void setFileInformation(SrvSession sess, TreeConnection tree, String name,
+                                   FileInfo info) throws IOException {
+        // Writing out buffered data or fixing up timestamps later on would overwrite the new
+        // modification time.
+        flushPendingWrites(name);
+        runTimestampFixup(getContext(tree), name);
+        try {
+            super.setFileInformation(sess, tree, name, info);
+        } finally {
+            getContext(tree).onPathChanged(name);
+        }
+    }
+
+    @Override
+    public NetworkFile createFile(SrvSession sess, TreeConnection tree, FileOpenParams params)
+            throws IOException {
+        try {
+            return super.createFile(sess, tree, params);
+        } finally {
+            getContext(tree).onPathChanged(params.getPath());
+        }
+    }
+
+    @Override
+    public void createDirectory(SrvSession sess, TreeConnection tree, FileOpenParams params)
+            throws IOException {
+        try {
+            super.createDirectory(sess, tree, params);
+        } finally {
+            getContext(tree).onPathChanged(params.getPath());
+        }
+    }
+
+    @Override
+    public NetworkFile openFile(SrvSession sess, TreeConnection tree, FileOpenParams params)
+            throws IOException {
+        NetworkFile file = super.openFile(sess, tree, params);
+        if (file.isDirectory()) {
+            getContext(tree).onDirectoryOpened(sess, file.getFullName());
+        } else if (!params.isReadOnlyAccess()) {
+            // The file might have been truncated or overwritten as part of opening it.
+            getContext(tree).onPathChanged(params.getPath());
+        }
+        return file;
+    }
+
+    @Override
+    public void closeFile(SrvSession sess, TreeConnection tree, NetworkFile file)
+            throws IOException {
+        if (file.isDirectory()) {
+            getContext(tree).onDirectoryClosed(sess, file.getFullName());
+        }
+        mReadAhead.close(file);
+        try {
+            WriteBehindCache writeBehind = mWriteBehind;
+            if (writeBehind != null) {
+                try {
+                    writeBehind.flush(file);
+                } finally {
+                    super.closeFile(sess, tree, file);
+                }
+            } else {
+                super.closeFile(sess, tree, file);
+            }
+        } finally {
+            if (file.getWriteCount() > 0) {
+                // Closing might update the modification time.
+                getContext(tree).onPathChanged(file.getFullName());
+            }
+        }
     }
 
     @Override
     public void renameFile(SrvSession sess, TreeConnection tree, String oldName, String newName, NetworkFile netFile) throws IOException {
-        DeviceContext context = tree.getContext();
+        SimbaDiskDeviceContext context = getContext(tree);
         Path oldPath = Paths.get( FileName.buildPath(context.getDeviceName(), oldName, null, java.io.File.separatorChar));
         Path newPath = Paths.get( FileName.buildPath(context.getDeviceName(), newName, null, java.io.File.separatorChar));
 
@@ -51,26 +458,50 @@ public class SimbaDiskDriver extends JavaNIODiskDriver implements DiskSizeInterf
         // modified time, but actually only does so in memory while apparently still updating the
         // on-disk file system. This means that after the next reboot at latest, the last modified
         // date will suddenly change to the time of renaming after all. Hence we manually need to
-        // act to preserve the last modified date across renames.
-        FileTime lastMod;
-        try {
-            lastMod = Files.getLastModifiedTime(oldPath);
-        } catch (IOException ex) {
-            lastMod = FileTime.fromMillis(System.currentTimeMillis());
-            Log.d(LOGTAG, "Couldn't get last modified date, falling back to current time");
+        // act to preserve the last modified date across renames. Whether a volume is affected is
+        // detected when the share is started, see RenameTimestampFixups.
+        flushPendingWrites(oldName);
+        RenameTimestampFixups fixups = context.getRenameTimestampFixups();
+        FileTime lastMod = null;
+        if (fixups != null) {
+            fixups.runNow(oldName);
+            try {
+                lastMod = Files.getLastModifiedTime(oldPath);
+            } catch (IOException ex) {
+                lastMod = FileTime.fromMillis(System.currentTimeMillis());
+                Log.d(LOGTAG, "Couldn't get last modified date, falling back to current time");
+            }
         }
         super.renameFile(sess, tree, oldName, newName, netFile);
+        context.onTreeChanged(oldName);
+        context.onTreeChanged(newName);
+
+        if (fixups != null) {
+            fixups.schedule(newName, newPath, lastMod);
+        }
+    }
+
+    private static void cancelTimestampFixup(SimbaDiskDeviceContext context, String name) {
+        RenameTimestampFixups fixups = context.getRenameTimestampFixups();
+        if (fixups != null) {
+            fixups.cancel(name);
+        }
+    }
+
+    private static void runTimestampFixup(SimbaDiskDeviceContext context, String name) {
+        RenameTimestampFixups fixups = context.getRenameTimestampFixups();
+        if (fixups != null) {
+            fixups.runNow(name);
+        }
+    }
 
-        // Because the in-memory file system cache keeps reporting the original last modified date,
-        // we need to temporarily set a differing value in order to force-flush the correct time
-        // back to the on-disk file system.
-        Files.setLastModifiedTime(newPath, FileTime.fromMillis(lastMod.toMillis() - 42 * 1000));
-        Files.setLastModifiedTime(newPath, lastMod);
+    private static SimbaDiskDeviceContext getContext(TreeConnection tree) {
+        return (SimbaDiskDeviceContext) tree.getContext();
     }
 
     @Override
     protected JavaNIODeviceContext createJavaNIODeviceContext(String shareName, ConfigElement args)
             throws DeviceContextException {
-        return new SimbaDiskDeviceContext(shareName, args);
+        return new SimbaDiskDeviceContext(shareName, args, mProbe);
     }
 }
@@ -0,0 +1,84 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import org.filesys.server.filesys.FileAttribute;
+import org.filesys.server.filesys.FileInfo;
+import org.filesys.server.filesys.SearchContext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Search context serving a wildcard search from a {@link DirectorySnapshotCache} snapshot.
+ */
+class SnapshotSearchContext extends SearchContext {
+    private final List<FileInfo> mEntries;
+    private int mPosition;
+
+    /**
+     * @param snapshot All entries of the directory being searched.
+     * @param attrib Search attributes - hidden, system and directory entries are only returned if
+     *               the corresponding attribute is included.
+     */
+    SnapshotSearchContext(List<FileInfo> snapshot, int attrib) {
+        mEntries = new ArrayList<>(snapshot.size());
+        for (FileInfo entry : snapshot) {
+            if (matchesAttributes(entry, attrib)) {
+                mEntries.add(entry);
+            }
+        }
+    }
+
+    private static boolean matchesAttributes(FileInfo entry, int attrib) {
+        return (!entry.isHidden() || (attrib & FileAttribute.Hidden) != 0) &&
+                (!entry.isSystem() || (attrib & FileAttribute.System) != 0) &&
+                (!entry.isDirectory() || (attrib & FileAttribute.Directory) != 0);
+    }
+
+    @Override
+    public int getResumeId() {
+        return mPosition;
+    }
+
+    @Override
+    public boolean hasMoreFiles() {
+        return mPosition < mEntries.size();
+    }
+
+    @Override
+    public boolean nextFileInfo(FileInfo info) {
+        if (!hasMoreFiles()) {
+            return false;
+        }
+        info.copyFrom(mEntries.get(mPosition++));
+        return true;
+    }
+
+    @Override
+    public String nextFileName() {
+        return hasMoreFiles() ? mEntries.get(mPosition++).getFileName() : null;
+    }
+
+    @Override
+    public boolean restartAt(int resumeId) {
+        if (resumeId < 0 || resumeId > mEntries.size()) {
+            return false;
+        }
+        mPosition = resumeId;
+        return true;
+    }
+
+    @Override
+    public boolean restartAt(FileInfo info) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            if (mEntries.get(i).getFileName().equals(info.getFileName())) {
+                mPosition = i;
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,201 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.util.Log;
+
+import org.filesys.server.filesys.NetworkFile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects small adjacent writes to open files in memory and writes them out in large chunks.
+ * <p>
+ * A file's pending data is flushed once its buffer is full, when a write doesn't continue or
+ * overlap the buffered range, and whenever the caller explicitly asks for it, e.g. before reading
+ * the file or querying its attributes and when closing it. Chunks are sized so that, except for
+ * the last one, they end on a page boundary.
+ * <p>
+ * Errors writing buffered data can only be reported by the operation triggering the flush, not
+ * by the write request that originally supplied the data.
+ */
+class WriteBehindCache {
+    private static final String LOGTAG = "WriteBehindCache";
+
+    private static final int ALIGNMENT = 4096;
+    private static final int MAX_BUFFERS = 32;
+    private static final int MAX_POOLED_BUFFERS = 4;
+    // Writes larger than this fraction of the buffer size are passed through directly.
+    private static final int MAX_BUFFERED_WRITE_DIVISOR = 4;
+
+    /**
+     * Writes buffered data to the file.
+     */
+    interface Sink {
+        int write(byte[] buf, int bufPos, int len, long filePos) throws IOException;
+    }
+
+    public record Stats(long bufferedWrites, long flushes, long bufferedBytes) {
+        /**
+         * @return The average number of write requests combined into one actual write.
+         */
+        public double coalescingRatio() {
+            return flushes > 0 ? (double) bufferedWrites / flushes : 0;
+        }
+    }
+
+    // Statistics are kept for the lifetime of the process.
+    private static final AtomicLong sBufferedWrites = new AtomicLong();
+    private static final AtomicLong sFlushes = new AtomicLong();
+    private static final AtomicLong sBufferedBytes = new AtomicLong();
+
+    private final BufferPool mBufferPool;
+    private final Map<NetworkFile, PendingWrite> mPending = new ConcurrentHashMap<>();
+
+    WriteBehindCache(int bufferSize) {
+        mBufferPool = new BufferPool(bufferSize, MAX_BUFFERS, MAX_POOLED_BUFFERS);
+    }
+
+    static Stats getStats() {
+        return new Stats(sBufferedWrites.get(), sFlushes.get(), sBufferedBytes.get());
+    }
+
+    /**
+     * Buffer a write to the given file if possible. Any pending data that can't be combined with
+     * this write is flushed first.
+     *
+     * @param sink Used for writing the file's buffered data later on.
+     * @return <code>true</code> if the write has been buffered, <code>false</code> if the caller
+     *         needs to write the data itself.
+     */
+    boolean write(NetworkFile file, byte[] buf, int bufPos, int len, long filePos, Sink sink)
+            throws IOException {
+        if (len > mBufferPool.getBufferSize() / MAX_BUFFERED_WRITE_DIVISOR) {
+            flush(file);
+            return false;
+        }
+
+        synchronized (file) {
+            PendingWrite pending = mPending.get(file);
+            if (pending != null && !pending.append(buf, bufPos, len, filePos)) {
+                flush(file);
+                pending = null;
+            }
+            if (pending == null) {
+                byte[] buffer = mBufferPool.acquire();
+                if (buffer == null) {
+                    return false;
+                }
+                pending = new PendingWrite(buffer, filePos, sink);
+                if (!pending.append(buf, bufPos, len, filePos)) {
+                    // The buffer is too small to fit this write up to the next page boundary.
+                    mBufferPool.release(buffer);
+                    return false;
+                }
+                mPending.put(file, pending);
+            }
+            sBufferedWrites.incrementAndGet();
+            sBufferedBytes.addAndGet(len);
+
+            if (pending.isFull()) {
+                flush(file);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write out any data buffered for the given file.
+     */
+    void flush(NetworkFile file) throws IOException {
+        synchronized (file) {
+            PendingWrite pending = mPending.remove(file);
+            if (pending == null) {
+                return;
+            }
+            try {
+                pending.flush();
+                sFlushes.incrementAndGet();
+            } catch (IOException e) {
+                Log.w(LOGTAG, "Writing buffered data of " + file.getFullName() + " failed", e);
+                throw e;
+            } finally {
+                mBufferPool.release(pending.mBuffer);
+            }
+        }
+    }
+
+    /**
+     * Write out any data buffered for files opened under the given share path.
+     */
+    void flushPath(String path) throws IOException {
+        if (mPending.isEmpty()) {
+            return;
+        }
+        List<NetworkFile> files = new ArrayList<>();
+        for (NetworkFile file : mPending.keySet()) {
+            String name = file.getFullName();
+            if (name != null && name.equalsIgnoreCase(path)) {
+                files.add(file);
+            }
+        }
+        for (NetworkFile file : files) {
+            flush(file);
+        }
+    }
+
+    private static class PendingWrite {
+        private final byte[] mBuffer;
+        private final long mStart;
+        private final int mCapacity;
+        private final Sink mSink;
+        private int mLength;
+
+        PendingWrite(byte[] buffer, long start, Sink sink) {
+            mBuffer = buffer;
+            mStart = start;
+            mSink = sink;
+            // Make the chunk end on a page boundary.
+            mCapacity = buffer.length - (int) (start % ALIGNMENT);
+        }
+
+        /**
+         * @return Whether the data continues or overlaps the buffered range and fits into the
+         *         buffer.
+         */
+        boolean append(byte[] buf, int bufPos, int len, long filePos) {
+            if (filePos < mStart || filePos > mStart + mLength) {
+                return false;
+            }
+            int offset = (int) (filePos - mStart);
+            if (len > mCapacity - offset) {
+                return false;
+            }
+            System.arraycopy(buf, bufPos, mBuffer, offset, len);
+            mLength = Math.max(mLength, offset + len);
+            return true;
+        }
+
+        boolean isFull() {
+            return mLength >= mCapacity;
+        }
+
+        void flush() throws IOException {
+            int written = 0;
+            while (written < mLength) {
+                int count = mSink.write(mBuffer, written, mLength - written, mStart + written);
+                if (count <= 0) {
+                    throw new IOException("Short write at offset " + (mStart + written));
+                }
+                written += count;
+            }
+        }
+    }
+}
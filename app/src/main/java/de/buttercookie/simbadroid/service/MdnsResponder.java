@@ -0,0 +1,241 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.impl.JmDNSImpl;
+
+import de.buttercookie.simbadroid.util.ThreadUtils;
+
+/**
+ * Advertises a custom .local hostname and the SMB service running on that host via mDNS/DNS-SD,
+ * publishing an A or AAAA record for each address.
+ * <p>
+ * There is one long-lived responder per address, so when the set of addresses changes, only the
+ * responders for addresses that have gone away are shut down and responders are only started for
+ * new addresses, while the others keep answering without having to probe and announce again.
+ * As JmDNS can't rename a running responder's host, a hostname change still restarts all of them.
+ * <p>
+ * If the hostname is already taken on the network, JmDNS picks a free one while probing (e.g.
+ * <code>simbadroid-2</code>). The SMB service is registered under the resulting hostname only
+ * afterwards, so that the service name is free as well and both names match without any further
+ * registration attempts. As each responder probes on its own, they might end up with different
+ * hostnames, though. The first responder to finish, normally the one for the primary address,
+ * then decides the service name used on all of them and the hostname that is reported.
+ * <p>
+ * Changes are applied after a short delay, so that a burst of updates during a network change
+ * only results in a single update of the responders.
+ */
+public class MdnsResponder {
+    private static final String LOGTAG = "mDNS";
+
+    private static final String SMB_SERVICE_TYPE = "_microsoft-ds._tcp.local.";
+    private static final String LOCAL_DOMAIN = ".local.";
+    private static final long DEBOUNCE_DELAY_MS = 250;
+    private static final long ANNOUNCE_TIMEOUT_MS = 10 * 1000;
+
+    /**
+     * Notified on the UI thread about the hostname actually in use after probing.
+     */
+    interface Listener {
+        /**
+         * @param hostname The hostname without the .local suffix, or <code>null</code> if
+         *                 nothing is being advertised.
+         */
+        void onHostnameChanged(@Nullable String hostname);
+    }
+
+    // Responders by bound address, with null standing for JmDNS's auto-binding.
+    private static final Map<InetAddress, JmDNS> sJmDNS = new HashMap<>();
+    private static String sHostname;
+    private static int sPort;
+
+    // The requested state, applied on the background thread.
+    private static String sPendingHostname;
+    private static int sPendingPort;
+    private static List<InetAddress> sPendingAddresses = new ArrayList<>();
+    private static Listener sListener;
+    private static final Runnable sApplyRunnable = MdnsResponder::apply;
+
+    private static ExecutorService sRegistrar;
+    // The name the SMB service is registered under on all responders. Only accessed on the
+    // registrar thread.
+    private static String sServiceName;
+    private static volatile long sLastAnnounceDurationMs = -1;
+
+    private MdnsResponder() {}
+
+    /**
+     * Set the hostname and SMB service to be advertised via mDNS.
+     *
+     * @param addrs The IP addresses to bind to and publish. If empty, JmDNS's auto-binding will
+     *              be used.
+     * @param hostname The hostname to advertise via mDNS. If <code>null</code>, the responder is
+     *                 shut down.
+     * @param port The port of the SMB service.
+     */
+    static void publish(List<InetAddress> addrs, @Nullable String hostname, int port,
+                        @Nullable Listener listener) {
+        synchronized (MdnsResponder.class) {
+            sPendingAddresses = new ArrayList<>(addrs);
+            sPendingHostname = hostname;
+            sPendingPort = port;
+            sListener = listener;
+        }
+        ThreadUtils.getBackgroundHandler().removeCallbacks(sApplyRunnable);
+        ThreadUtils.postDelayedToBackgroundThread(sApplyRunnable, DEBOUNCE_DELAY_MS);
+    }
+
+    /**
+     * Stop advertising anything.
+     */
+    static void shutdown() {
+        publish(new ArrayList<>(), null, 0, null);
+    }
+
+    /**
+     * @return How long it took the most recently started responder to finish probing and
+     * announcing its records, in milliseconds, or -1 if unknown.
+     */
+    public static long getLastAnnounceDurationMs() {
+        return sLastAnnounceDurationMs;
+    }
+
+    private static void apply() {
+        String hostname;
+        int port;
+        List<InetAddress> addresses;
+        synchronized (MdnsResponder.class) {
+            hostname = sPendingHostname;
+            port = sPendingPort;
+            addresses = new ArrayList<>(sPendingAddresses);
+        }
+        if (addresses.isEmpty()) {
+            addresses.add(null);
+        }
+
+        boolean restart = !Objects.equals(sHostname, hostname) || sPort != port;
+        Iterator<Map.Entry<InetAddress, JmDNS>> responders = sJmDNS.entrySet().iterator();
+        while (responders.hasNext()) {
+            Map.Entry<InetAddress, JmDNS> responder = responders.next();
+            if (restart || !addresses.contains(responder.getKey())) {
+                close(responder.getValue());
+                responders.remove();
+            }
+        }
+        sHostname = hostname;
+        sPort = port;
+        if (restart) {
+            // Queued before any registration for the new responders.
+            getRegistrar().execute(() -> sServiceName = null);
+        }
+
+        if (hostname == null) {
+            notifyHostname(null);
+            return;
+        }
+        for (InetAddress addr : addresses) {
+            if (!sJmDNS.containsKey(addr)) {
+                start(addr, hostname, port);
+            }
+        }
+    }
+
+    private static void start(@Nullable InetAddress addr, String hostname, int port) {
+        final long startTime = SystemClock.elapsedRealtime();
+        final JmDNS jmDNS;
+        try {
+            jmDNS = JmDNS.create(addr, hostname);
+        } catch (IOException e) {
+            Log.d(LOGTAG, "Error starting mDNS responder on " + addr, e);
+            return;
+        }
+        sJmDNS.put(addr, jmDNS);
+
+        getRegistrar().execute(() -> {
+            if (jmDNS instanceof JmDNSImpl impl && !impl.waitForAnnounced(ANNOUNCE_TIMEOUT_MS)) {
+                if (!impl.isClosing() && !impl.isClosed()) {
+                    Log.w(LOGTAG, hostname + " not announced on " + addr + " after " +
+                            ANNOUNCE_TIMEOUT_MS + " ms");
+                }
+                return;
+            }
+            sLastAnnounceDurationMs = SystemClock.elapsedRealtime() - startTime;
+
+            String actualHostname = jmDNS.getHostName();
+            if (actualHostname.endsWith(LOCAL_DOMAIN)) {
+                actualHostname = actualHostname.substring(0,
+                        actualHostname.length() - LOCAL_DOMAIN.length());
+            }
+            Log.d(LOGTAG, actualHostname + " announced on " + addr + " after " +
+                    sLastAnnounceDurationMs + " ms");
+            if (sServiceName == null) {
+                sServiceName = actualHostname;
+            } else if (!sServiceName.equals(actualHostname)) {
+                Log.w(LOGTAG, "Got hostname " + actualHostname + " on " + addr +
+                        ", but " + sServiceName + " on other addresses");
+            }
+            final String serviceName = sServiceName;
+
+            try {
+                jmDNS.registerService(ServiceInfo.create(SMB_SERVICE_TYPE, serviceName, port,
+                        ""));
+            } catch (IOException | IllegalStateException e) {
+                // Most likely closed in the meantime.
+                Log.d(LOGTAG, "Error registering SMB service on " + addr, e);
+                return;
+            }
+            notifyHostname(serviceName);
+        });
+    }
+
+    private static void notifyHostname(@Nullable String hostname) {
+        final Listener listener;
+        synchronized (MdnsResponder.class) {
+            listener = sListener;
+        }
+        if (listener != null) {
+            ThreadUtils.postToUiThread(() -> listener.onHostnameChanged(hostname));
+        }
+    }
+
+    private static void close(JmDNS jmDNS) {
+        try {
+            jmDNS.close();
+        } catch (IOException e) {
+            Log.d(LOGTAG, "Error stopping mDNS responder", e);
+        }
+    }
+
+    private static synchronized ExecutorService getRegistrar() {
+        if (sRegistrar == null) {
+            sRegistrar = Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("SimbaMdnsRegistrar-%d")
+                            .setDaemon(true)
+                            .build());
+        }
+        return sRegistrar;
+    }
+}
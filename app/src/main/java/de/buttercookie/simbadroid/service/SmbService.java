@@ -5,8 +5,6 @@
 package de.buttercookie.simbadroid.service;
 
 import static de.buttercookie.simbadroid.Intents.ACTION_STOP;
-import static de.buttercookie.simbadroid.util.Iptables.iptables;
-
 import android.Manifest;
 import android.annotation.SuppressLint;
 import android.app.Notification;
@@ -23,8 +21,6 @@ import android.net.LinkProperties;
 import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.NetworkRequest;
-import android.net.nsd.NsdManager;
-import android.net.nsd.NsdServiceInfo;
 import android.net.wifi.WifiManager;
 import android.os.Binder;
 import android.os.Build;
@@ -35,20 +31,27 @@ import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.ServiceCompat;
 
 import org.filesys.smb.TcpipSMB;
 
-import java.net.Inet4Address;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 import de.buttercookie.simbadroid.MainActivity;
 import de.buttercookie.simbadroid.R;
 import de.buttercookie.simbadroid.jlan.JLANFileServer;
+import de.buttercookie.simbadroid.jlan.ServerMetrics;
 import de.buttercookie.simbadroid.permissions.Permissions;
 import de.buttercookie.simbadroid.util.IpSort;
+import de.buttercookie.simbadroid.util.Iptables;
 import de.buttercookie.simbadroid.util.ThreadUtils;
 
 public class SmbService extends Service {
@@ -60,6 +63,32 @@ public class SmbService extends Service {
     private static final long NETWORK_UNAVAILABLE_TIMEOUT_MS = 20 * 60 * 1000;
     private static final String UNC_PREFIX = "\\\uFEFF\\";
     private static final String MDNS_SUFFIX = ".local";
+    // Redirects from the standard SMB/NetBIOS ports to the unprivileged ones we listen on.
+    private static final List<String> PORT_REDIRECTS = List.of(
+            "-p tcp --dport 445 -j REDIRECT --to-port 4450",
+            "-p udp --dport 137 -j REDIRECT --to-port 1137",
+            "-p udp --dport 138 -j REDIRECT --to-port 1138",
+            "-p tcp --dport 139 -j REDIRECT --to-port 1139");
+    // The redirects live in their own chain, which is only jumped to for packets arriving on the
+    // interfaces we're serving.
+    private static final String REDIRECT_CHAIN = "SIMBADROID";
+    private static final String REDIRECT_PARENT_CHAIN = "PREROUTING";
+    // When listening on all interfaces, this chain drops SMB connections arriving on any other
+    // interface than the ones we're serving.
+    private static final String FILTER_CHAIN = "SIMBADROID_IN";
+    private static final String FILTER_PARENT_CHAIN = "INPUT";
+    // The ports we actually listen on for SMB and NetBIOS sessions, as seen after redirection.
+    private static final List<String> SESSION_PORT_MATCHES = List.of(
+            "-p tcp --dport 4450",
+            "-p tcp --dport 1139");
+    // Browsers talk to each other via the NetBIOS datagram port, so counting the datagrams
+    // arriving on the interfaces we're serving tells us whether there are any browsers around to
+    // announce the server to. This chain has one counting rule per served interface. Unlike the
+    // redirects, which only see the first packet of each flow, filter rules see every packet.
+    private static final String BROWSER_CHAIN = "SIMBADROID_NB";
+    private static final String BROWSER_PARENT_CHAIN = "INPUT";
+    // The datagram port we actually listen on, as seen after redirection.
+    private static final List<String> DATAGRAM_PORT_MATCHES = List.of("-p udp --dport 1138");
 
     private final IBinder binder = new SmbBinder();
 
@@ -71,19 +100,32 @@ public class SmbService extends Service {
 
     private boolean mRunning = false;
     private LinkAddress mLinkAddress = null;
+    // The preferred IPv6 address of the same network, if mLinkAddress isn't one already. It is
+    // only served while listening on all addresses, which requires root, as JFileServer takes a
+    // single SMB bind address. Changes to it don't affect the listener.
+    private LinkAddress mIPv6Address = null;
+    private String mInterfaceName = null;
+    // Further Wi-Fi or Ethernet networks we're connected to besides the one providing
+    // mLinkAddress, mapped to their interface name.
+    private final Map<Network, String> mExtraInterfaces = new HashMap<>();
+    // The interfaces the port redirects and the SMB port block are currently scoped to.
+    private List<String> mServedInterfaces = null;
+    // Whether SMB connections from other interfaces are blocked, so that it's safe to listen on
+    // all interfaces and addresses.
+    private boolean mAllInterfacesAllowed = false;
 
     private JLANFileServer mServer;
     private PowerManager.WakeLock mWakeLock;
     private WifiManager.WifiLock mWifiLock;
+    private WifiManager.MulticastLock mMulticastLock;
 
     private ConnectivityManager.NetworkCallback mNetCallback;
+    private ConnectivityManager.NetworkCallback mExtraNetCallback;
     private Runnable mNetworkTimeoutRunnable;
     private long mNetworkTimeoutMs = NETWORK_UNAVAILABLE_STARTUP_TIMEOUT_MS;
 
-    private NsdManager.RegistrationListener mNsdRegistrationListener;
+    private boolean mMDNSPublished;
     private String mMDNSHostname;
-    private static final int INITIAL_SERVICE_NAME_SUFFIX = 1;
-    private int mServiceNameSuffix = INITIAL_SERVICE_NAME_SUFFIX;
 
     public record Status(boolean serviceRunning, boolean serverRunning, String mdnsAddress,
                          String netBiosAddress, String ipAddress) {
@@ -96,7 +138,11 @@ public class SmbService extends Service {
         }
     }
 
-    private void setLinkAddress(LinkAddress address) {
+    private void setLinkAddress(LinkAddress address, LinkAddress ipv6Address,
+                                String interfaceName) {
+        mInterfaceName = interfaceName;
+        boolean ipv6Changed = !Objects.equals(mIPv6Address, ipv6Address);
+        mIPv6Address = ipv6Address;
         if (!Objects.equals(mLinkAddress, address)) {
             mLinkAddress = address;
             if (address != null) {
@@ -104,12 +150,97 @@ public class SmbService extends Service {
             }
             updateServerState();
         }
+        if (ipv6Changed && mMDNSPublished) {
+            publishMDNS();
+        }
+        updateServedInterfaces();
+    }
+
+    private void setExtraInterface(Network network, @Nullable String interfaceName) {
+        if (interfaceName != null) {
+            mExtraInterfaces.put(network, interfaceName);
+        } else {
+            mExtraInterfaces.remove(network);
+        }
+        updateServedInterfaces();
+    }
+
+    private void setAllInterfacesAllowed(boolean allowed) {
+        if (mAllInterfacesAllowed != allowed) {
+            mAllInterfacesAllowed = allowed;
+            if (mServer != null && mServer.running() && isNetworkAvailable()) {
+                Log.d(LOGTAG, allowed ? "Serving all interfaces" : "Serving " + mInterfaceName);
+                mServer.rebind(mLinkAddress, allowed);
+            }
+        }
+    }
+
+    /**
+     * Scope the port redirects to all interfaces we're connected to and block SMB connections
+     * from any other interface. Once the block is in place, SMB listens on all interfaces and
+     * addresses, which covers extra networks and IPv6, and stays that way while only the set of
+     * served interfaces changes, as rebinding would drop all sessions. Without root, SMB stays
+     * bound to the primary address, so extra networks and, on dual-stack networks, IPv6 clients
+     * aren't served.
+     */
+    private void updateServedInterfaces() {
+        ThreadUtils.assertOnUiThread();
+        List<String> interfaces = new ArrayList<>();
+        if (mInterfaceName != null) {
+            interfaces.add(mInterfaceName);
+            for (String extra : mExtraInterfaces.values()) {
+                if (!interfaces.contains(extra)) {
+                    interfaces.add(extra);
+                }
+            }
+        }
+        if (!mRunning || interfaces.equals(mServedInterfaces)) {
+            return;
+        }
+        mServedInterfaces = interfaces;
+
+        if (interfaces.isEmpty()) {
+            // Narrow the listener down before lifting the block.
+            setAllInterfacesAllowed(false);
+        }
+        ThreadUtils.postToBackgroundThread(() -> {
+            scopePortRedirects(interfaces);
+            final boolean blocked = scopeSmbPort(interfaces);
+            ThreadUtils.postToUiThread(() -> {
+                if (mRunning && interfaces.equals(mServedInterfaces)) {
+                    setAllInterfacesAllowed(blocked);
+                    if (!blocked && !interfaces.isEmpty()) {
+                        // Whatever is left of the block can go once the listener is narrowed.
+                        ThreadUtils.postToBackgroundThread(() -> scopeSmbPort(List.of()));
+                    }
+                }
+            });
+        });
+    }
+
+    private void publishMDNS() {
+        mMDNSPublished = true;
+        List<InetAddress> addrs = new ArrayList<>();
+        if (mLinkAddress != null) {
+            addrs.add(mLinkAddress.getAddress());
+        }
+        if (mIPv6Address != null) {
+            addrs.add(mIPv6Address.getAddress());
+        }
+        MdnsResponder.publish(addrs, getString(R.string.dns_name), TcpipSMB.PORT, hostname -> {
+            if (mMDNSPublished) {
+                mMDNSHostname = hostname;
+                updateUI();
+            }
+        });
     }
 
-    private void setMDNSHostname(String hostname) {
-        mMDNSHostname = hostname;
-        InetAddress addr = mLinkAddress != null ? mLinkAddress.getAddress() : null;
-        HostnameBroadcaster.setHostname(addr, hostname);
+    private void unpublishMDNS() {
+        if (mMDNSPublished) {
+            mMDNSPublished = false;
+            mMDNSHostname = null;
+            MdnsResponder.shutdown();
+        }
     }
 
     @Override
@@ -118,6 +249,7 @@ public class SmbService extends Service {
         createNotificationChannel();
         initLocks();
         monitorNetwork();
+        ServerMetrics.get().setAnnounceDurationSource(MdnsResponder::getLastAnnounceDurationMs);
     }
 
     @Nullable
@@ -136,6 +268,7 @@ public class SmbService extends Service {
 
         try {
             mServer = new JLANFileServer(this, getString(R.string.dns_name));
+            mServer.setBrowserActivitySource(SmbService::getBrowserPacketCount);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -145,12 +278,10 @@ public class SmbService extends Service {
                 ServiceInfo.FOREGROUND_SERVICE_TYPE_MANIFEST);
         acquireLocks();
 
-        iptables(false, "nat", "A", "PREROUTING -p tcp --dport 445 -j REDIRECT --to-port 4450");
-        iptables(false, "nat", "A", "PREROUTING -p udp --dport 137 -j REDIRECT --to-port 1137");
-        iptables(false, "nat", "A", "PREROUTING -p udp --dport 138 -j REDIRECT --to-port 1138");
-        iptables(false, "nat", "A", "PREROUTING -p tcp --dport 139 -j REDIRECT --to-port 1139");
+        ThreadUtils.postToBackgroundThread(SmbService::addPortRedirects);
 
         setIsRunning(true);
+        updateServedInterfaces();
 
         return START_NOT_STICKY;
     }
@@ -171,11 +302,10 @@ public class SmbService extends Service {
         }
 
         setIsRunning(false);
+        mServedInterfaces = null;
+        mAllInterfacesAllowed = false;
 
-        iptables(false, "nat", "D", "PREROUTING -p tcp --dport 445 -j REDIRECT --to-port 4450");
-        iptables(false, "nat", "D", "PREROUTING -p udp --dport 137 -j REDIRECT --to-port 1137");
-        iptables(false, "nat", "D", "PREROUTING -p udp --dport 138 -j REDIRECT --to-port 1138");
-        iptables(false, "nat", "D", "PREROUTING -p tcp --dport 139 -j REDIRECT --to-port 1139");
+        ThreadUtils.postToBackgroundThread(SmbService::removePortRedirects);
 
         ServiceCompat.stopForeground(this, ServiceCompat.STOP_FOREGROUND_REMOVE);
         releaseLocks();
@@ -184,7 +314,7 @@ public class SmbService extends Service {
 
     @Override
     public void onDestroy() {
-        unregisterNsdService();
+        unpublishMDNS();
         unmonitorNetwork();
         stopNetworkTimeout();
         updateUI();
@@ -212,13 +342,22 @@ public class SmbService extends Service {
             return;
         }
 
-        if (mRunning && isNetworkAvailable()) {
+        if (mRunning && isNetworkAvailable() && mServer.running()) {
+            // Only the address has changed, so keep the shares and the service registration and
+            // just move the listeners over. While SMB listens on all interfaces, this only
+            // restarts NetBIOS, so SMB sessions survive.
+            Log.d(LOGTAG, "Rebinding SMB server");
+            mServer.rebind(mLinkAddress, mAllInterfacesAllowed);
+            if (mMDNSPublished) {
+                publishMDNS();
+            }
+        } else if (mRunning && isNetworkAvailable()) {
             Log.d(LOGTAG, "Starting SMB server");
-            mServer.setBindAddress(mLinkAddress);
+            mServer.setBindAddress(mLinkAddress, mAllInterfacesAllowed);
             mServer.start();
             getSystemService(NotificationManager.class)
                     .notify(NOTIFICATION_ID, getServiceNotification());
-            registerNsdService();
+            publishMDNS();
         } else {
             Log.d(LOGTAG, "Stopping SMB server");
             mServer.stop();
@@ -226,11 +365,136 @@ public class SmbService extends Service {
                 getSystemService(NotificationManager.class)
                         .notify(NOTIFICATION_ID, getServiceNotification());
             }
-            unregisterNsdService();
+            unpublishMDNS();
+            if (!mRunning) {
+                // The next start creates a new server.
+                mServer.close();
+                mServer = null;
+            }
         }
         updateUI();
     }
 
+    /**
+     * Set up the port redirects, which then still need to be scoped to the served interfaces.
+     * This also sweeps any leftovers from a previous instance that died before it could remove
+     * its redirects, as setting up the chain replaces its contents and scoping it replaces all
+     * existing jumps to it.
+     */
+    private static void addPortRedirects() {
+        removeLegacyPortRedirects();
+        if (!Iptables.setChain(false, "nat", REDIRECT_CHAIN, PORT_REDIRECTS)) {
+            Log.w(LOGTAG, "Couldn't redirect standard SMB ports");
+        }
+        // IPv6 NAT isn't supported by every kernel, in which case IPv6 clients simply can't use
+        // the standard ports.
+        if (!Iptables.setChain(true, "nat", REDIRECT_CHAIN, PORT_REDIRECTS)) {
+            Log.i(LOGTAG, "Couldn't redirect standard SMB ports for IPv6");
+        }
+    }
+
+    private static void scopePortRedirects(List<String> interfaces) {
+        Log.d(LOGTAG, "Redirecting standard SMB ports on " + interfaces);
+        List<String> matches = new ArrayList<>();
+        for (String iface : interfaces) {
+            matches.add("-i " + iface);
+        }
+        Iptables.setJumps(false, "nat", REDIRECT_PARENT_CHAIN, REDIRECT_CHAIN, matches);
+        Iptables.setJumps(true, "nat", REDIRECT_PARENT_CHAIN, REDIRECT_CHAIN, matches);
+        scopeBrowserCounters(interfaces);
+    }
+
+    /**
+     * Count NetBIOS datagrams arriving on the given interfaces, see {@link #BROWSER_CHAIN}.
+     *
+     * @param interfaces If empty, counting stops.
+     */
+    private static void scopeBrowserCounters(List<String> interfaces) {
+        if (interfaces.isEmpty()) {
+            Iptables.deleteChain(false, "filter", BROWSER_PARENT_CHAIN, BROWSER_CHAIN);
+            return;
+        }
+        List<String> rules = new ArrayList<>();
+        for (String iface : interfaces) {
+            rules.add("-i " + iface + " -j RETURN");
+        }
+        if (!Iptables.setChain(false, "filter", BROWSER_CHAIN, rules) ||
+                !Iptables.setJumps(false, "filter", BROWSER_PARENT_CHAIN, BROWSER_CHAIN,
+                        DATAGRAM_PORT_MATCHES)) {
+            Log.i(LOGTAG, "Couldn't count NetBIOS datagrams");
+            Iptables.deleteChain(false, "filter", BROWSER_PARENT_CHAIN, BROWSER_CHAIN);
+        }
+    }
+
+    /**
+     * Block SMB connections arriving on other than the given interfaces.
+     *
+     * @param interfaces If empty, the block is lifted.
+     * @return Whether the block is in place for both IPv4 and IPv6.
+     */
+    private static boolean scopeSmbPort(List<String> interfaces) {
+        if (interfaces.isEmpty()) {
+            Iptables.deleteChain(false, "filter", FILTER_PARENT_CHAIN, FILTER_CHAIN);
+            Iptables.deleteChain(true, "filter", FILTER_PARENT_CHAIN, FILTER_CHAIN);
+            return false;
+        }
+
+        List<String> rules = new ArrayList<>();
+        rules.add("-i lo -j RETURN");
+        for (String iface : interfaces) {
+            rules.add("-i " + iface + " -j RETURN");
+        }
+        rules.add("-j DROP");
+        boolean blocked =
+                Iptables.setChain(false, "filter", FILTER_CHAIN, rules) &&
+                Iptables.setJumps(false, "filter", FILTER_PARENT_CHAIN, FILTER_CHAIN,
+                        SESSION_PORT_MATCHES) &&
+                Iptables.setChain(true, "filter", FILTER_CHAIN, rules) &&
+                Iptables.setJumps(true, "filter", FILTER_PARENT_CHAIN, FILTER_CHAIN,
+                        SESSION_PORT_MATCHES);
+        if (!blocked) {
+            Log.w(LOGTAG, "Couldn't restrict SMB to " + interfaces + ", serving one interface");
+        }
+        return blocked;
+    }
+
+    private static void removePortRedirects() {
+        Iptables.deleteChain(false, "nat", REDIRECT_PARENT_CHAIN, REDIRECT_CHAIN);
+        Iptables.deleteChain(true, "nat", REDIRECT_PARENT_CHAIN, REDIRECT_CHAIN);
+        scopeSmbPort(List.of());
+        scopeBrowserCounters(List.of());
+    }
+
+    /**
+     * Remove the redirects older versions added directly to the PREROUTING chain for all
+     * interfaces, in case they were left behind.
+     */
+    private static void removeLegacyPortRedirects() {
+        List<Iptables.Rule> rules = new ArrayList<>();
+        for (String redirect : PORT_REDIRECTS) {
+            rules.add(new Iptables.Rule(false, "nat", REDIRECT_PARENT_CHAIN + " " + redirect));
+            rules.add(new Iptables.Rule(true, "nat", REDIRECT_PARENT_CHAIN + " " + redirect));
+        }
+        Iptables.remove(rules);
+    }
+
+    /**
+     * @return The number of NetBIOS datagrams received on the served interfaces so far, or -1 if
+     * unknown, e.g. without root. The count starts over whenever the served interfaces change.
+     */
+    @WorkerThread
+    private static long getBrowserPacketCount() {
+        long[] counts = Iptables.getPacketCounts(false, "filter", BROWSER_CHAIN);
+        if (counts == null || counts.length == 0) {
+            return -1;
+        }
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
     private void startNetworkTimeout() {
         stopNetworkTimeout();
         mNetworkTimeoutRunnable = this::stop;
@@ -253,15 +517,20 @@ public class SmbService extends Service {
 
         WifiManager wifiMgr = getSystemService(WifiManager.class);
         mWifiLock = wifiMgr.createWifiLock(WifiManager.WIFI_MODE_FULL, tag);
+        // Many devices filter multicast packets while the screen is off, which would hide mDNS
+        // queries from us.
+        mMulticastLock = wifiMgr.createMulticastLock(tag);
     }
 
     @SuppressLint("WakelockTimeout")
     private void acquireLocks() {
         mWakeLock.acquire();
         mWifiLock.acquire();
+        mMulticastLock.acquire();
     }
 
     private void releaseLocks() {
+        mMulticastLock.release();
         mWifiLock.release();
         mWakeLock.release();
     }
@@ -275,19 +544,25 @@ public class SmbService extends Service {
                     connMgr.bindProcessToNetwork(network);
                     LinkProperties props = connMgr.getLinkProperties(network);
                     if (props != null) {
-                        var sortedAddresses = props.getLinkAddresses().stream()
-                                .filter(address -> address.getAddress() instanceof Inet4Address)
-                                .sorted(new IpSort.LinkAddressComparator(false));
+                        // Prefer IPv4 as the primary address for NetBIOS' sake, but fall back to
+                        // IPv6 on IPv6-only networks.
+                        var address = props.getLinkAddresses().stream()
+                                .min(new IpSort.LinkAddressComparator(false)).orElse(null);
+                        var ipv6Address = props.getLinkAddresses().stream()
+                                .filter(addr -> addr.getAddress() instanceof Inet6Address)
+                                .filter(addr -> !addr.equals(address))
+                                .min(new IpSort.LinkAddressComparator(true)).orElse(null);
+                        var interfaceName = props.getInterfaceName();
                         ThreadUtils.postToUiThread(() ->
-                                setLinkAddress(sortedAddresses.findFirst().orElse(null)));
+                                setLinkAddress(address, ipv6Address, interfaceName));
                     } else {
-                        ThreadUtils.postToUiThread(() -> setLinkAddress(null));
+                        ThreadUtils.postToUiThread(() -> setLinkAddress(null, null, null));
                     }
                 }
 
                 @Override
                 public void onLost(@NonNull Network network) {
-                    ThreadUtils.postToUiThread(() -> setLinkAddress(null));
+                    ThreadUtils.postToUiThread(() -> setLinkAddress(null, null, null));
                     connMgr.bindProcessToNetwork(null);
                 }
             };
@@ -299,86 +574,62 @@ public class SmbService extends Service {
                     mNetCallback
             );
         }
-    }
-
-    private void unmonitorNetwork() {
-        if (mNetCallback != null) {
+        if (mExtraNetCallback == null) {
+            // The request above only ever gives us one network, so keep track of any other local
+            // networks we're connected to at the same time separately.
             ConnectivityManager connMgr = getSystemService(ConnectivityManager.class);
-            mLinkAddress = null;
-            connMgr.unregisterNetworkCallback(mNetCallback);
-            connMgr.bindProcessToNetwork(null);
-            mNetCallback = null;
-        }
-    }
-
-    private void registerNsdService() {
-        if (mNsdRegistrationListener == null) {
-            final String serviceName = getNsdServiceName(mServiceNameSuffix);
-
-            NsdServiceInfo serviceInfo = new NsdServiceInfo();
-            serviceInfo.setServiceName(serviceName);
-            serviceInfo.setServiceType("_microsoft-ds._tcp.");
-            serviceInfo.setPort(TcpipSMB.PORT);
-
-            mNsdRegistrationListener = new NsdManager.RegistrationListener() {
-                @Override
-                public void onServiceRegistered(NsdServiceInfo serviceInfo) {
-                    // Android auto-increments the service name on detecting a collision, but it
-                    // does so by appending a " (<digit>)" suffix (i.e. including a space) to the
-                    // service name, making the resulting name not plain-DNS-friendly.
-                    if (!serviceName.equals(serviceInfo.getServiceName())) {
-                        // We couldn't get our preferred service name, so try again with a suffix
-                        ThreadUtils.postToUiThread(() -> {
-                            mServiceNameSuffix++;
-                            unregisterNsdService();
-                            registerNsdService();
-                        });
-                    } else {
-                        setMDNSHostname(serviceName);
-                        updateUI();
-                    }
-                }
-
-                @Override
-                public void onRegistrationFailed(NsdServiceInfo serviceInfo, int errorCode) {
-                    setMDNSHostname(null);
-                    updateUI();
-                }
-
+            mExtraNetCallback = new ConnectivityManager.NetworkCallback() {
                 @Override
-                public void onServiceUnregistered(NsdServiceInfo serviceInfo) {
-                    setMDNSHostname(null);
-                    updateUI();
+                public void onLinkPropertiesChanged(@NonNull Network network,
+                                                    @NonNull LinkProperties props) {
+                    var interfaceName = !props.getLinkAddresses().isEmpty() ?
+                            props.getInterfaceName() : null;
+                    ThreadUtils.postToUiThread(() -> setExtraInterface(network, interfaceName));
                 }
 
                 @Override
-                public void onUnregistrationFailed(NsdServiceInfo serviceInfo, int errorCode) {
-                    setMDNSHostname(null);
-                    updateUI();
+                public void onLost(@NonNull Network network) {
+                    ThreadUtils.postToUiThread(() -> setExtraInterface(network, null));
                 }
             };
-
-            NsdManager nsdManager = getSystemService(NsdManager.class);
-            nsdManager.registerService(
-                    serviceInfo, NsdManager.PROTOCOL_DNS_SD, mNsdRegistrationListener);
+            connMgr.registerNetworkCallback(
+                    new NetworkRequest.Builder()
+                            .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+                            .addTransportType(NetworkCapabilities.TRANSPORT_ETHERNET)
+                            .build(),
+                    mExtraNetCallback
+            );
         }
     }
 
-    private void unregisterNsdService() {
-        if (mNsdRegistrationListener != null) {
-            NsdManager nsdManager = getSystemService(NsdManager.class);
-            nsdManager.unregisterService(mNsdRegistrationListener);
-            mNsdRegistrationListener = null;
+    private void unmonitorNetwork() {
+        if (mNetCallback != null) {
+            ConnectivityManager connMgr = getSystemService(ConnectivityManager.class);
+            mLinkAddress = null;
+            mIPv6Address = null;
+            mInterfaceName = null;
+            connMgr.unregisterNetworkCallback(mNetCallback);
+            connMgr.bindProcessToNetwork(null);
+            mNetCallback = null;
+        }
+        if (mExtraNetCallback != null) {
+            ConnectivityManager connMgr = getSystemService(ConnectivityManager.class);
+            mExtraInterfaces.clear();
+            connMgr.unregisterNetworkCallback(mExtraNetCallback);
+            mExtraNetCallback = null;
         }
     }
 
-    private String getNsdServiceName(int suffix) {
-        StringBuilder sb = new StringBuilder(getString(R.string.dns_name));
-        if (mServiceNameSuffix > INITIAL_SERVICE_NAME_SUFFIX) {
-            sb.append("-");
-            sb.append(suffix);
+    /**
+     * @return The address in a form usable as the host part of a UNC path, which for IPv6 means
+     * the <code>ipv6-literal.net</code> notation.
+     */
+    private static String getUNCHost(InetAddress address) {
+        String host = address.getHostAddress();
+        if (address instanceof Inet6Address) {
+            host = host.replace(':', '-').replace('%', 's') + ".ipv6-literal.net";
         }
-        return sb.toString();
+        return host;
     }
 
     private String getUNCFormattedMDNSAddress() {
@@ -471,7 +722,7 @@ public class SmbService extends Service {
         boolean serverStarted = mServer != null && mServer.running();
         String netBiosAddress = UNC_PREFIX + getString(R.string.dns_name);
         String textualIp = mLinkAddress != null ?
-                UNC_PREFIX + mLinkAddress.getAddress().getHostAddress() : "";
+                UNC_PREFIX + getUNCHost(mLinkAddress.getAddress()) : "";
 
         Status status = new Status(mRunning, serverStarted,
                 getUNCFormattedMDNSAddress(), netBiosAddress, textualIp);
@@ -22,24 +22,50 @@ package de.buttercookie.simbadroid.util;
 
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
 import com.topjohnwu.superuser.Shell;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class Iptables {
     private static final String LOGTAG = "Iptables";
 
     private static String hasWait;
 
+    /**
+     * A single iptables rule.
+     *
+     * @param table The table the rule belongs to, e.g. <code>nat</code>.
+     * @param rule The chain followed by the rule specification, e.g.
+     *             <code>PREROUTING -p tcp --dport 445 -j REDIRECT --to-port 4450</code>.
+     */
+    public record Rule(boolean isIPv6, String table, String rule) {
+        private String command(String operation) {
+            return Iptables.command(isIPv6, table) + " -" + operation + " " + rule;
+        }
+    }
+
     private Iptables() {}
 
-    private static boolean shellCommand(String command) {
-        Shell.Result result = Shell.cmd(command).exec();
+    private static String command(boolean isIPv6, String table) {
+        return (isIPv6 ? "ip6tables " : "iptables ") + waitCmd() + "-t " + table;
+    }
+
+    private static boolean shellCommand(String... commands) {
+        Shell.Result result = Shell.cmd(commands).exec();
         for (String message : result.getOut()) {
             Log.i(LOGTAG, message);
         }
+        for (String message : result.getErr()) {
+            Log.w(LOGTAG, message);
+        }
         return result.isSuccess();
     }
 
-    private static String waitCmd() {
+    private static synchronized String waitCmd() {
         if (hasWait == null) {
             hasWait = testWait();
         }
@@ -47,21 +73,117 @@ public class Iptables {
     }
 
     private static String testWait() {
-        String cmd = "";
-        if (shellCommand("iptables -w 0 --help > /dev/null")) {
-            cmd = "-w 2 ";
-        } else if (shellCommand("iptables -w --help > /dev/null")) { // Early versions do not have the timeout
-            cmd = "-w ";
+        // Early versions do not have the timeout
+        List<String> out = Shell.cmd(
+                "if iptables -w 0 --help > /dev/null 2>&1; then echo '-w 2 ';" +
+                " elif iptables -w --help > /dev/null 2>&1; then echo '-w ';" +
+                " else echo; fi").exec().getOut();
+        return out.isEmpty() ? "" : out.get(0);
+    }
+
+    /**
+     * Create a custom chain if it doesn't exist yet and replace its contents with the given rules.
+     * The new rules are appended before the old ones are removed from the front, so a chain that
+     * ends in a verdict never lets through anything that both rule sets would have stopped while
+     * it is being updated. If any rule can't be added, the chain is left as it was.
+     *
+     * @param rules The rule specifications, without the chain name.
+     * @return Whether the chain now contains all rules.
+     */
+    @WorkerThread
+    public static boolean setChain(boolean isIPv6, String table, String chain,
+                                   List<String> rules) {
+        String ipt = command(isIPv6, table);
+        List<String> script = new ArrayList<>();
+        script.add("(");
+        String count = "$(" + ipt + " -S " + chain + " | grep -c '^-A ')";
+        script.add(ipt + " -N " + chain + " 2> /dev/null");
+        script.add("old=" + count);
+        String rollback = "while [ " + count + " -gt $old ]; do " +
+                ipt + " -D " + chain + " $((old + 1)) || break; done";
+        for (String rule : rules) {
+            script.add(ipt + " -A " + chain + " " + rule + " || { " + rollback + "; exit 1; }");
+        }
+        script.add("while [ $old -gt 0 ]; do " + ipt + " -D " + chain + " 1 || exit 1;" +
+                " old=$((old - 1)); done");
+        script.add(")");
+
+        boolean success = shellCommand(script.toArray(new String[0]));
+        if (!success) {
+            Log.w(LOGTAG, "Couldn't set up chain " + chain);
+        }
+        return success;
+    }
+
+    /**
+     * Replace all jumps from <code>parent</code> to <code>chain</code> by one jump per given
+     * match, e.g. <code>-i wlan0</code> to only jump for packets arriving on that interface.
+     *
+     * @param matches If empty, all jumps are just removed.
+     * @return Whether the jumps are now in place.
+     */
+    @WorkerThread
+    public static boolean setJumps(boolean isIPv6, String table, String parent, String chain,
+                                   List<String> matches) {
+        String ipt = command(isIPv6, table);
+        List<String> script = new ArrayList<>();
+        script.add("(");
+        script.add(ipt + " -S " + parent + " 2> /dev/null | grep -e ' -j " + chain + "$' |" +
+                " sed 's/^-A /-D /' | while read -r rule; do " + ipt + " $rule; done");
+        for (String match : matches) {
+            script.add(ipt + " -A " + parent + " " + match + " -j " + chain + " || exit 1");
+        }
+        script.add(")");
+        return shellCommand(script.toArray(new String[0]));
+    }
+
+    /**
+     * Remove a custom chain including all jumps from <code>parent</code> to it.
+     */
+    @WorkerThread
+    public static void deleteChain(boolean isIPv6, String table, String parent, String chain) {
+        String ipt = command(isIPv6, table);
+        setJumps(isIPv6, table, parent, chain, List.of());
+        shellCommand(ipt + " -F " + chain + " 2> /dev/null; " +
+                ipt + " -X " + chain + " 2> /dev/null; true");
+    }
+
+    /**
+     * @return The number of packets that have matched each rule of <code>chain</code> so far, in
+     * rule order, or <code>null</code> if the chain can't be listed.
+     */
+    @WorkerThread
+    @Nullable
+    public static long[] getPacketCounts(boolean isIPv6, String table, String chain) {
+        Shell.Result result =
+                Shell.cmd(command(isIPv6, table) + " -L " + chain + " -n -v -x").exec();
+        if (!result.isSuccess()) {
+            return null;
+        }
+        // Skip the chain name and the column headers.
+        List<String> out = result.getOut();
+        long[] counts = new long[Math.max(0, out.size() - 2)];
+        try {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = Long.parseLong(out.get(i + 2).trim().split("\\s+", 2)[0]);
+            }
+        } catch (NumberFormatException e) {
+            Log.w(LOGTAG, "Couldn't parse counters of " + chain, e);
+            return null;
         }
-        return cmd;
+        return counts;
     }
 
-    public static void iptables(boolean isIPv6, String table, String operation, String rule) {
-        String command = isIPv6 ? "ip6tables" : "iptables";
-        boolean exists = Shell.cmd(command + " " + waitCmd() + "-t " + table + " -C " + rule).exec().isSuccess();
-        if ((!exists && (operation.equals("N") || operation.equals("I") || operation.equals("A"))) ||
-                (exists && (operation.equals("D") || operation.equals("F") || operation.equals("X")))) {
-            shellCommand(command + " " + waitCmd() + "-t " + table + " -" + operation + " " + rule);
+    /**
+     * Remove all existing rules in a single root shell invocation.
+     */
+    @WorkerThread
+    public static void remove(List<Rule> rules) {
+        List<String> script = new ArrayList<>();
+        for (Rule rule : rules) {
+            script.add("if " + rule.command("C") + " 2> /dev/null; then " +
+                    rule.command("D") + "; fi");
         }
+        shellCommand(script.toArray(new String[0]));
     }
 }
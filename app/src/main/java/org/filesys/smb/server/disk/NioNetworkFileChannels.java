@@ -0,0 +1,28 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package org.filesys.smb.server.disk;
+
+import androidx.annotation.Nullable;
+
+import org.filesys.server.filesys.NetworkFile;
+
+import java.nio.channels.FileChannel;
+
+/**
+ * Exposes the channel {@link JavaNIONetworkFile} keeps open for the file, which JFileServer
+ * doesn't provide any public accessor for.
+ */
+public final class NioNetworkFileChannels {
+    private NioNetworkFileChannels() {}
+
+    /**
+     * @return The channel of <code>file</code>, or <code>null</code> if it isn't a
+     *         {@link JavaNIONetworkFile} or the file hasn't been opened for I/O yet.
+     */
+    @Nullable
+    public static FileChannel getChannel(NetworkFile file) {
+        return file instanceof JavaNIONetworkFile nioFile ? nioFile.m_io : null;
+    }
+}
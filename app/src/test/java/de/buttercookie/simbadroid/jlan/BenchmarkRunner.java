@@ -0,0 +1,109 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Minimal JMH-style harness: runs an operation for a number of timed warmup and measurement
+ * iterations and reports throughput and heap allocation per operation.
+ */
+final class BenchmarkRunner {
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    record Result(String name, double opsPerSec, double opsPerSecError, double bytesPerOp) {
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-32s %12.1f ± %9.1f ops/s %12.1f B/op",
+                    name, opsPerSec, opsPerSecError, bytesPerOp);
+        }
+    }
+
+    private final int mWarmupIterations;
+    private final int mMeasurementIterations;
+    private final long mIterationTimeNs;
+    private final List<Result> mResults = new ArrayList<>();
+
+    BenchmarkRunner(int warmupIterations, int measurementIterations, long iterationTimeMs) {
+        mWarmupIterations = warmupIterations;
+        mMeasurementIterations = measurementIterations;
+        mIterationTimeNs = iterationTimeMs * 1_000_000;
+    }
+
+    Result run(String name, Operation op) throws Exception {
+        for (int i = 0; i < mWarmupIterations; i++) {
+            runIteration(op);
+        }
+
+        double[] throughput = new double[mMeasurementIterations];
+        long totalOps = 0;
+        long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < mMeasurementIterations; i++) {
+            long start = System.nanoTime();
+            long ops = runIteration(op);
+            long elapsed = System.nanoTime() - start;
+            throughput[i] = ops * 1e9 / elapsed;
+            totalOps += ops;
+        }
+        long allocatedAfter = allocatedBytes();
+
+        double mean = 0;
+        for (double t : throughput) {
+            mean += t;
+        }
+        mean /= throughput.length;
+        double variance = 0;
+        for (double t : throughput) {
+            variance += (t - mean) * (t - mean);
+        }
+        double error = throughput.length > 1 ?
+                Math.sqrt(variance / (throughput.length - 1)) : 0;
+        double bytesPerOp = allocatedBefore >= 0 && allocatedAfter >= 0 && totalOps > 0 ?
+                (double) (allocatedAfter - allocatedBefore) / totalOps : Double.NaN;
+
+        Result result = new Result(name, mean, error, bytesPerOp);
+        mResults.add(result);
+        System.out.println(result);
+        return result;
+    }
+
+    List<Result> getResults() {
+        return mResults;
+    }
+
+    private long runIteration(Operation op) throws Exception {
+        long deadline = System.nanoTime() + mIterationTimeNs;
+        long ops = 0;
+        do {
+            op.run();
+            ops++;
+        } while (System.nanoTime() < deadline);
+        return ops;
+    }
+
+    /**
+     * @return The number of bytes allocated so far by the current thread, or -1 if the JVM
+     *         doesn't support allocation measurement.
+     */
+    @SuppressWarnings("deprecation")
+    private static long allocatedBytes() {
+        try {
+            // Resolved reflectively, as the unit test classpath is based on android.jar, which
+            // lacks java.lang.management.
+            Object threadBean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            Method getAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) getAllocatedBytes.invoke(threadBean, Thread.currentThread().getId());
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import static org.junit.Assume.assumeTrue;
+
+import org.filesys.server.filesys.AccessMode;
+import org.filesys.server.filesys.DiskDeviceContext;
+import org.filesys.server.filesys.DiskSharedDevice;
+import org.filesys.server.filesys.FileAction;
+import org.filesys.server.filesys.FileAttribute;
+import org.filesys.server.filesys.FileInfo;
+import org.filesys.server.filesys.FileOpenParams;
+import org.filesys.server.filesys.NetworkFile;
+import org.filesys.server.filesys.SearchContext;
+import org.filesys.server.filesys.SearchFlags;
+import org.filesys.server.filesys.TreeConnection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.extensions.config.element.GenericConfigElement;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumSet;
+
+/**
+ * Throughput baseline for {@link SimbaDiskDriver} on the host JVM.
+ * <p>
+ * Skipped unless run with <code>./gradlew testDefaultDebugUnitTest -Pbenchmark</code>.
+ */
+public class DiskDriverBenchmark {
+    private static final String SHARE_NAME = "Bench";
+
+    private static final int SMALL_FILE_COUNT = 1000;
+    private static final int SMALL_FILE_SIZE = 4096;
+    private static final long LARGE_FILE_SIZE = 64L * 1024 * 1024;
+    private static final int LARGE_IO_SIZE = 64 * 1024;
+
+    private Path mRoot;
+    private SimbaDiskDriver mDriver;
+    private TreeConnection mTree;
+    private BenchmarkRunner mRunner;
+
+    private final byte[] mSmallBuf = new byte[SMALL_FILE_SIZE];
+    private final byte[] mLargeBuf = new byte[LARGE_IO_SIZE];
+    private int mCounter;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(Boolean.getBoolean("simbadroid.benchmark"));
+
+        mRoot = Files.createTempDirectory("simbadroid-bench");
+        Files.createDirectory(mRoot.resolve("small"));
+        for (int i = 0; i < SMALL_FILE_COUNT; i++) {
+            Files.write(mRoot.resolve("small").resolve(smallFileName(i)), mSmallBuf);
+        }
+
+        mDriver = new SimbaDiskDriver(
+                new AdaptiveMemoryPoolPolicy(AdaptiveMemoryPoolPolicy.Mode.FIXED),
+                new JvmFileSystemProbe());
+        final GenericConfigElement driverConfig = new GenericConfigElement("driver");
+        final GenericConfigElement localPathConfig = new GenericConfigElement("LocalPath");
+        localPathConfig.setValue(mRoot.toAbsolutePath().toString());
+        driverConfig.addChild(localPathConfig);
+        driverConfig.addChild(new GenericConfigElement("DiskIsCaseInsensitive"));
+        DiskDeviceContext context =
+                (DiskDeviceContext) mDriver.createContext(SHARE_NAME, driverConfig);
+        context.setShareName(SHARE_NAME);
+        context.setConfigurationParameters(driverConfig);
+        context.enableChangeHandler(false);
+        DiskSharedDevice diskDev = new DiskSharedDevice(SHARE_NAME, mDriver, context);
+        context.startFilesystem(diskDev);
+        mTree = new TreeConnection(diskDev);
+
+        mRunner = new BenchmarkRunner(
+                Integer.getInteger("simbadroid.benchmark.warmup", 3),
+                Integer.getInteger("simbadroid.benchmark.iterations", 5),
+                Long.getLong("simbadroid.benchmark.iterationMs", 1000));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mRoot != null) {
+            TestFiles.deleteRecursively(mRoot);
+        }
+    }
+
+    @Test
+    public void smallFiles() throws Exception {
+        mRunner.run("small.create+write+close", () -> {
+            NetworkFile file = mDriver.createFile(null, mTree,
+                    openParams(smallPath(mCounter++), FileAction.NTOverwriteIf,
+                            AccessMode.ReadWrite));
+            mDriver.writeFile(null, mTree, file, mSmallBuf, 0, mSmallBuf.length, 0);
+            mDriver.closeFile(null, mTree, file);
+        });
+        mRunner.run("small.open+read+close", () -> {
+            NetworkFile file = mDriver.openFile(null, mTree,
+                    openParams(smallPath(mCounter++), FileAction.OpenIfExists,
+                            AccessMode.ReadOnly));
+            mDriver.readFile(null, mTree, file, mSmallBuf, 0, mSmallBuf.length, 0);
+            mDriver.closeFile(null, mTree, file);
+        });
+        mRunner.run("small.getFileInformation", () ->
+                mDriver.getFileInformation(null, mTree, smallPath(mCounter++)));
+        mRunner.run("small.rename", () -> {
+            int i = mCounter++ % SMALL_FILE_COUNT;
+            String from = "\\small\\" + smallFileName(i);
+            String to = "\\small\\renamed-" + smallFileName(i);
+            mDriver.renameFile(null, mTree, from, to, null);
+            mDriver.renameFile(null, mTree, to, from, null);
+        });
+        mRunner.run("small.search(" + SMALL_FILE_COUNT + ")", () -> {
+            SearchContext search = mDriver.startSearch(null, mTree, "\\small\\*",
+                    FileAttribute.Directory, EnumSet.noneOf(SearchFlags.class));
+            FileInfo info = new FileInfo();
+            while (search.nextFileInfo(info)) {
+                info.resetInfo();
+            }
+            search.closeSearch();
+        });
+    }
+
+    @Test
+    public void largeFiles() throws Exception {
+        NetworkFile file = mDriver.createFile(null, mTree,
+                openParams("\\large.bin", FileAction.NTOverwriteIf, AccessMode.ReadWrite));
+        try {
+            for (long pos = 0; pos < LARGE_FILE_SIZE; pos += LARGE_IO_SIZE) {
+                mDriver.writeFile(null, mTree, file, mLargeBuf, 0, LARGE_IO_SIZE, pos);
+            }
+
+            mRunner.run("large.sequentialWrite(64k)", () -> {
+                long pos = (mCounter++ * (long) LARGE_IO_SIZE) % LARGE_FILE_SIZE;
+                mDriver.writeFile(null, mTree, file, mLargeBuf, 0, LARGE_IO_SIZE, pos);
+            });
+            mRunner.run("large.sequentialRead(64k)", () -> {
+                long pos = (mCounter++ * (long) LARGE_IO_SIZE) % LARGE_FILE_SIZE;
+                mDriver.readFile(null, mTree, file, mLargeBuf, 0, LARGE_IO_SIZE, pos);
+            });
+        } finally {
+            mDriver.closeFile(null, mTree, file);
+        }
+    }
+
+    private static FileOpenParams openParams(String path, int action, int accessMode) {
+        return new FileOpenParams(path, action, accessMode, FileAttribute.NTNormal, 0);
+    }
+
+    private static String smallFileName(int i) {
+        return "file" + (i % SMALL_FILE_COUNT) + ".dat";
+    }
+
+    private static String smallPath(int i) {
+        return "\\small\\" + smallFileName(i);
+    }
+}
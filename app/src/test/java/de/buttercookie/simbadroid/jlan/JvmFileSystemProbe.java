@@ -0,0 +1,49 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * {@link FileSystemProbe} for running the disk driver on the host JVM.
+ */
+class JvmFileSystemProbe implements FileSystemProbe {
+    private static final long BLOCK_SIZE = 4096;
+
+    @Override
+    public SpaceInfo getSpaceInfo(String path) {
+        try {
+            FileStore store = Files.getFileStore(Paths.get(path));
+            return new SpaceInfo(BLOCK_SIZE, store.getTotalSpace() / BLOCK_SIZE,
+                    store.getUsableSpace() / BLOCK_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public long getDeviceId(String path) throws IOException {
+        Path p = Paths.get(path);
+        try {
+            return ((Number) Files.getAttribute(p, "unix:dev")).longValue();
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return Files.getFileStore(p).name().hashCode();
+        }
+    }
+
+    @Override
+    public String getFileSystemType(String path) {
+        try {
+            return Files.getFileStore(Paths.get(path)).type();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.filesys.smb.server.SMBServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load test running the server as configured by {@link JLANFileServerConfiguration}
+ * on the loopback interface and driving it with concurrent {@link Smb1Client} sessions.
+ * <p>
+ * Skipped unless run with <code>./gradlew testDefaultDebugUnitTest -Pbenchmark</code>. The
+ * number of sessions and the duration of each scenario can be set through the
+ * <code>simbadroid.loadtest.sessions</code> and <code>simbadroid.loadtest.durationMs</code>
+ * system properties, and <code>simbadroid.loadtest.maxP99Us</code> turns the 99th percentile
+ * latency into a pass/fail criterion.
+ */
+public class LoopbackLoadTest {
+    private static final int SMB_PORT = 4450;
+    private static final String HOST_NAME = "SIMBATEST";
+    private static final String SHARE_NAME = "Load";
+
+    private static final int LISTING_FILE_COUNT = 2000;
+    private static final long READ_FILE_SIZE = 32L * 1024 * 1024;
+    private static final int READ_CHUNK_SIZE = 61440;
+    private static final int SMALL_FILE_SIZE = 4096;
+
+    private interface SessionOperation {
+        /**
+         * @return The number of payload bytes transferred.
+         */
+        long run(Smb1Client client, int session, long iteration) throws IOException;
+    }
+
+    private final InetAddress mLoopback = InetAddress.getLoopbackAddress();
+    private final int mSessions = Integer.getInteger("simbadroid.loadtest.sessions", 8);
+    private final long mDurationMs = Long.getLong("simbadroid.loadtest.durationMs", 10000);
+    private final long mMaxP99Us = Long.getLong("simbadroid.loadtest.maxP99Us", 0);
+
+    private Path mRoot;
+    private JLANFileServerConfiguration mConfig;
+    private SMBServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(Boolean.getBoolean("simbadroid.benchmark"));
+
+        mRoot = Files.createTempDirectory("simbadroid-load");
+        Path listing = Files.createDirectory(mRoot.resolve("listing"));
+        for (int i = 0; i < LISTING_FILE_COUNT; i++) {
+            Files.createFile(listing.resolve("photo" + i + ".jpg"));
+        }
+        byte[] chunk = new byte[1024 * 1024];
+        try (var out = Files.newOutputStream(mRoot.resolve("read.bin"))) {
+            for (long written = 0; written < READ_FILE_SIZE; written += chunk.length) {
+                out.write(chunk);
+            }
+        }
+        for (int i = 0; i < mSessions; i++) {
+            Files.createDirectory(mRoot.resolve("write" + i));
+        }
+
+        mConfig = new JLANFileServerConfiguration(HOST_NAME,
+                List.of(new JLANFileServerConfiguration.Share(SHARE_NAME,
+                        mRoot.toAbsolutePath().toString(), null)),
+                new JvmFileSystemProbe());
+        // As in the app's default settings.
+        mConfig.setDirectReadThreshold(32 * 1024);
+        mConfig.setBindAddress(mLoopback, null);
+        mServer = new SMBServer(mConfig);
+        mConfig.addServer(mServer);
+        mServer.startServer();
+        waitForServer();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mServer != null) {
+            mServer.shutdownServer(true);
+            mConfig.removeAllServers();
+        }
+        if (mRoot != null) {
+            TestFiles.deleteRecursively(mRoot);
+        }
+    }
+
+    @Test
+    public void directoryListings() throws Exception {
+        runScenario("directoryListing", (client, session, iteration) -> {
+            // Including "." and ".."
+            assertEquals(LISTING_FILE_COUNT + 2, client.list("\\listing\\*"));
+            return 0;
+        });
+    }
+
+    @Test
+    public void sequentialReads() throws Exception {
+        final int[] fids = new int[mSessions];
+        final byte[][] buffers = new byte[mSessions][READ_CHUNK_SIZE];
+        runScenario("sequentialRead", (client, session, iteration) -> {
+            if (iteration == 0) {
+                fids[session] = client.open("\\read.bin", false);
+            }
+            long offset = (iteration * READ_CHUNK_SIZE) % (READ_FILE_SIZE - READ_CHUNK_SIZE);
+            return client.read(fids[session], offset, buffers[session], 0, READ_CHUNK_SIZE);
+        });
+    }
+
+    @Test
+    public void smallFileWrites() throws Exception {
+        final byte[] data = new byte[SMALL_FILE_SIZE];
+        runScenario("smallFileWrite", (client, session, iteration) -> {
+            int fid = client.open("\\write" + session + "\\file" + iteration + ".dat", true);
+            int written = client.write(fid, 0, data, 0, data.length);
+            client.close(fid);
+            return written;
+        });
+    }
+
+    private void runScenario(String name, SessionOperation operation) throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final AtomicLong bytes = new AtomicLong();
+        final long deadline = System.nanoTime() + mDurationMs * 1_000_000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(mSessions);
+        List<Future<?>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < mSessions; i++) {
+            final int session = i;
+            results.add(executor.submit(() -> {
+                try (Smb1Client client = new Smb1Client(mLoopback, SMB_PORT)) {
+                    client.login();
+                    client.treeConnect(HOST_NAME, SHARE_NAME);
+                    for (long iteration = 0; System.nanoTime() < deadline; iteration++) {
+                        long opStart = System.nanoTime();
+                        bytes.addAndGet(operation.run(client, session, iteration));
+                        histogram.record((System.nanoTime() - opStart) / 1000);
+                    }
+                }
+                return null;
+            }));
+        }
+        executor.shutdown();
+        for (Future<?> result : results) {
+            result.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long p99 = histogram.getValueAtPercentile(99);
+        System.out.println(String.format(Locale.ROOT,
+                "%-18s sessions=%d ops=%d (%.0f/s) p50=%dus p99=%dus p999=%dus %.1f MB/s",
+                name, mSessions, histogram.getCount(), histogram.getCount() / seconds,
+                histogram.getValueAtPercentile(50), p99, histogram.getValueAtPercentile(99.9),
+                bytes.get() / seconds / (1024 * 1024)));
+        if (mMaxP99Us > 0) {
+            assertTrue(name + " p99 latency " + p99 + "us exceeds " + mMaxP99Us + "us",
+                    p99 <= mMaxP99Us);
+        }
+    }
+
+    private void waitForServer() throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket ignored = new Socket(mLoopback, SMB_PORT)) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("SMB server didn't start listening on port " + SMB_PORT);
+    }
+}
@@ -0,0 +1,119 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.filesys.server.config.ServerConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.extensions.config.element.GenericConfigElement;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Tests {@link RingBufferDebug} writing to a log file.
+ */
+public class RingBufferDebugTest {
+    private static final int CAPACITY = 4096;
+
+    private Path mDir;
+    private Path mLogFile;
+    private RingBufferDebug mDebug;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("simbadroid-debug");
+        mLogFile = mDir.resolve("jfileserver.log");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mDebug != null) {
+            mDebug.close();
+        }
+        if (mDir != null) {
+            TestFiles.deleteRecursively(mDir);
+        }
+    }
+
+    @Test
+    public void writesQueuedMessagesOnFlush() throws Exception {
+        mDebug = create("Info", Long.MAX_VALUE);
+        mDebug.debugPrintln("first", RingBufferDebug.LogLevel.Info);
+        mDebug.debugPrint("second ", RingBufferDebug.LogLevel.Warn);
+        mDebug.debugPrintln("line", RingBufferDebug.LogLevel.Warn);
+        mDebug.debugPrintln("filtered", RingBufferDebug.LogLevel.Debug);
+        mDebug.flush();
+
+        List<String> lines = readLines();
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0), lines.get(0).endsWith(" I first"));
+        assertTrue(lines.get(1), lines.get(1).endsWith(" W second line"));
+    }
+
+    @Test
+    public void reportsDroppedMessagesOnOverflow() throws Exception {
+        mDebug = create("Info", Long.MAX_VALUE);
+        // The drainer needs the instance's lock to take messages off the queue.
+        synchronized (mDebug) {
+            for (int i = 0; i < CAPACITY + 10; i++) {
+                mDebug.debugPrintln("message " + i, RingBufferDebug.LogLevel.Info);
+            }
+        }
+        mDebug.flush();
+
+        List<String> lines = readLines();
+        assertEquals(CAPACITY + 1, lines.size());
+        assertTrue(lines.get(CAPACITY - 1), lines.get(CAPACITY - 1).endsWith(
+                " I message " + (CAPACITY - 1)));
+        assertTrue(lines.get(CAPACITY), lines.get(CAPACITY).endsWith(
+                " W Debug output overflowed, dropped 10 messages"));
+    }
+
+    @Test
+    public void rotatesByEncodedSize() throws Exception {
+        final long maxFileSize = 1000;
+        // 300 bytes in UTF-8, but only 100 chars.
+        final String message = "€".repeat(100);
+        mDebug = create("Info", maxFileSize);
+        for (int i = 0; i < 10; i++) {
+            mDebug.debugPrintln(message, RingBufferDebug.LogLevel.Info);
+        }
+        mDebug.flush();
+
+        int lineSize = readLines().get(0).getBytes(StandardCharsets.UTF_8).length + 1;
+        assertTrue(Files.exists(mDir.resolve("jfileserver.log.1")));
+        assertTrue(Files.size(mLogFile) < maxFileSize + lineSize);
+        assertTrue(Files.size(mDir.resolve("jfileserver.log.1")) < maxFileSize + lineSize);
+    }
+
+    private RingBufferDebug create(String logLevel, long maxFileSize) throws Exception {
+        final GenericConfigElement output = new GenericConfigElement("output");
+        final GenericConfigElement level = new GenericConfigElement("logLevel");
+        level.setValue(logLevel);
+        output.addChild(level);
+        final GenericConfigElement file = new GenericConfigElement("file");
+        file.setValue(mLogFile.toAbsolutePath().toString());
+        output.addChild(file);
+        final GenericConfigElement maxSize = new GenericConfigElement("maxFileSize");
+        maxSize.setValue(String.valueOf(maxFileSize));
+        output.addChild(maxSize);
+
+        RingBufferDebug debug = new RingBufferDebug();
+        debug.initialize(output, new ServerConfiguration("TEST"));
+        return debug;
+    }
+
+    private List<String> readLines() throws IOException {
+        return Files.readAllLines(mLogFile, StandardCharsets.UTF_8);
+    }
+}
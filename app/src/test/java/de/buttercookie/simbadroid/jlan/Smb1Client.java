@@ -0,0 +1,355 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bare-bones synchronous SMB1 (NT LM 0.12) client, just capable enough to generate load against
+ * the server: guest login, tree connect, open/create, read, write, close and directory listings.
+ * <p>
+ * Only ASCII file names and non-extended security are supported, and every connection has at
+ * most one request in flight.
+ */
+final class Smb1Client implements Closeable {
+    private static final byte SMB_COM_CLOSE = 0x04;
+    private static final byte SMB_COM_READ_ANDX = 0x2E;
+    private static final byte SMB_COM_WRITE_ANDX = 0x2F;
+    private static final byte SMB_COM_TRANSACTION2 = 0x32;
+    private static final byte SMB_COM_NEGOTIATE = 0x72;
+    private static final byte SMB_COM_SESSION_SETUP_ANDX = 0x73;
+    private static final byte SMB_COM_TREE_CONNECT_ANDX = 0x75;
+    private static final byte SMB_COM_NT_CREATE_ANDX = (byte) 0xA2;
+
+    private static final short TRANS2_FIND_FIRST2 = 0x0001;
+    private static final short TRANS2_FIND_NEXT2 = 0x0002;
+    private static final short SMB_FIND_FILE_BOTH_DIRECTORY_INFO = 0x0104;
+    private static final short SMB_FIND_CLOSE_AT_EOS = 0x0002;
+    private static final short SMB_FIND_CONTINUE_FROM_LAST = 0x0008;
+
+    private static final int SMB_HEADER_LENGTH = 32;
+    private static final byte SMB_FLAGS = 0x18; // Case insensitive, canonicalised paths
+    private static final short SMB_FLAGS2 = 0x4001; // NT status codes, long names
+    private static final int CAPABILITIES = 0x0008 | 0x0010 | 0x0040 | 0x4000 | 0x8000;
+
+    static final int STATUS_NO_MORE_FILES = 0x80000006;
+
+    private static final int FILE_OPEN = 1;
+    private static final int FILE_OVERWRITE_IF = 5;
+    private static final int ACCESS_READ = 0x00120089;
+    private static final int ACCESS_READ_WRITE = 0x0012019F;
+
+    private static final int LIST_MAX_ENTRIES = 512;
+    private static final int LIST_MAX_DATA = 16384;
+
+    static final class SmbException extends IOException {
+        final int status;
+
+        SmbException(byte command, int status) {
+            super(String.format("SMB command 0x%02x failed with status 0x%08x", command, status));
+            this.status = status;
+        }
+    }
+
+    private record Response(byte[] message, int wordCount) {
+        int word(int offset) {
+            return u16(SMB_HEADER_LENGTH + 1 + offset);
+        }
+
+        int u16(int offset) {
+            return (message[offset] & 0xFF) | (message[offset + 1] & 0xFF) << 8;
+        }
+
+        int u32(int offset) {
+            return u16(offset) | u16(offset + 2) << 16;
+        }
+
+        int status() {
+            return u32(5);
+        }
+
+        int bytesOffset() {
+            return SMB_HEADER_LENGTH + 1 + wordCount * 2 + 2;
+        }
+    }
+
+    private final Socket mSocket;
+    private final DataInputStream mIn;
+    private final OutputStream mOut;
+
+    private int mUid;
+    private int mTid;
+    private int mMid;
+    private int mMaxBufferSize = 4356;
+
+    Smb1Client(InetAddress host, int port) throws IOException {
+        mSocket = new Socket();
+        mSocket.setTcpNoDelay(true);
+        mSocket.connect(new InetSocketAddress(host, port), 5000);
+        mIn = new DataInputStream(mSocket.getInputStream());
+        mOut = mSocket.getOutputStream();
+    }
+
+    /**
+     * Negotiate the dialect and log in as guest.
+     */
+    void login() throws IOException {
+        byte[] dialect = "\u0002NT LM 0.12\u0000".getBytes(StandardCharsets.US_ASCII);
+        Response negotiate = send(SMB_COM_NEGOTIATE, words(0), dialect);
+        if (negotiate.wordCount() != 17 || negotiate.word(0) != 0) {
+            throw new IOException("Server didn't accept NT LM 0.12 dialect");
+        }
+        mMaxBufferSize = negotiate.u32(SMB_HEADER_LENGTH + 1 + 7);
+
+        ByteBuffer words = words(26)
+                .put((byte) 0xFF).put((byte) 0).putShort((short) 0)
+                .putShort((short) 0xFFFF) // MaxBufferSize
+                .putShort((short) 1) // MaxMpxCount
+                .putShort((short) 0) // VcNumber
+                .putInt(0) // SessionKey
+                .putShort((short) 0) // OEMPasswordLen
+                .putShort((short) 0) // UnicodePasswordLen
+                .putInt(0)
+                .putInt(CAPABILITIES);
+        Response setup = send(SMB_COM_SESSION_SETUP_ANDX, words,
+                strings("guest", "WORKGROUP", "Java", "SimbaDroid load test"));
+        mUid = setup.u16(28);
+    }
+
+    void treeConnect(String server, String share) throws IOException {
+        ByteBuffer words = words(8)
+                .put((byte) 0xFF).put((byte) 0).putShort((short) 0)
+                .putShort((short) 0) // Flags
+                .putShort((short) 1); // PasswordLength
+        byte[] path = strings("\\\\" + server + "\\" + share, "?????");
+        byte[] bytes = new byte[path.length + 1];
+        System.arraycopy(path, 0, bytes, 1, path.length);
+        Response connect = send(SMB_COM_TREE_CONNECT_ANDX, words, bytes);
+        mTid = connect.u16(24);
+    }
+
+    /**
+     * @return The file ID of the opened file.
+     */
+    int open(String path, boolean create) throws IOException {
+        byte[] name = strings(path);
+        ByteBuffer words = words(48)
+                .put((byte) 0xFF).put((byte) 0).putShort((short) 0)
+                .put((byte) 0)
+                .putShort((short) name.length)
+                .putInt(0) // Flags
+                .putInt(0) // RootDirectoryFID
+                .putInt(create ? ACCESS_READ_WRITE : ACCESS_READ)
+                .putLong(0) // AllocationSize
+                .putInt(0x80) // FILE_ATTRIBUTE_NORMAL
+                .putInt(0x7) // Share read, write and delete
+                .putInt(create ? FILE_OVERWRITE_IF : FILE_OPEN)
+                .putInt(0x40) // FILE_NON_DIRECTORY_FILE
+                .putInt(2) // SecurityImpersonation
+                .put((byte) 0);
+        Response response = send(SMB_COM_NT_CREATE_ANDX, words, name);
+        return response.word(5);
+    }
+
+    int read(int fid, long offset, byte[] buf, int off, int len) throws IOException {
+        ByteBuffer words = words(24)
+                .put((byte) 0xFF).put((byte) 0).putShort((short) 0)
+                .putShort((short) fid)
+                .putInt((int) offset)
+                .putShort((short) len)
+                .putShort((short) len)
+                .putInt(len >>> 16) // MaxCountHigh
+                .putShort((short) 0)
+                .putInt((int) (offset >>> 32));
+        Response response = send(SMB_COM_READ_ANDX, words, new byte[0]);
+        int dataLength = response.word(10) | response.word(14) << 16;
+        int dataOffset = response.word(12);
+        System.arraycopy(response.message(), dataOffset, buf, off, dataLength);
+        return dataLength;
+    }
+
+    int write(int fid, long offset, byte[] buf, int off, int len) throws IOException {
+        // Header, word count, 14 words, byte count and one byte of padding
+        final int dataOffset = SMB_HEADER_LENGTH + 1 + 28 + 2 + 1;
+        ByteBuffer words = words(28)
+                .put((byte) 0xFF).put((byte) 0).putShort((short) 0)
+                .putShort((short) fid)
+                .putInt((int) offset)
+                .putInt(0) // Timeout
+                .putShort((short) 0) // WriteMode
+                .putShort((short) 0) // Remaining
+                .putShort((short) (len >>> 16))
+                .putShort((short) len)
+                .putShort((short) dataOffset)
+                .putInt((int) (offset >>> 32));
+        byte[] bytes = new byte[len + 1];
+        System.arraycopy(buf, off, bytes, 1, len);
+        Response response = send(SMB_COM_WRITE_ANDX, words, bytes);
+        return response.word(4) | response.word(8) << 16;
+    }
+
+    void close(int fid) throws IOException {
+        ByteBuffer words = words(6)
+                .putShort((short) fid)
+                .putInt(0xFFFFFFFF);
+        send(SMB_COM_CLOSE, words, new byte[0]);
+    }
+
+    /**
+     * List a directory.
+     *
+     * @param pattern Search pattern, e.g. <code>\dir\*</code>.
+     * @return The number of entries returned, including "." and "..".
+     */
+    int list(String pattern) throws IOException {
+        byte[] name = strings(pattern);
+        ByteBuffer params = ByteBuffer.allocate(12 + name.length).order(ByteOrder.LITTLE_ENDIAN)
+                .putShort((short) 0x16) // Hidden, system and directories
+                .putShort((short) LIST_MAX_ENTRIES)
+                .putShort(SMB_FIND_CLOSE_AT_EOS)
+                .putShort(SMB_FIND_FILE_BOTH_DIRECTORY_INFO)
+                .putInt(0)
+                .put(name);
+        Response response;
+        try {
+            response = transaction2(TRANS2_FIND_FIRST2, params.array());
+        } catch (SmbException e) {
+            if (e.status == STATUS_NO_MORE_FILES) {
+                return 0;
+            }
+            throw e;
+        }
+        int paramOffset = response.word(8);
+        int sid = response.u16(paramOffset);
+        int count = response.u16(paramOffset + 2);
+        boolean endOfSearch = response.u16(paramOffset + 4) != 0;
+
+        while (!endOfSearch) {
+            params = ByteBuffer.allocate(13).order(ByteOrder.LITTLE_ENDIAN)
+                    .putShort((short) sid)
+                    .putShort((short) LIST_MAX_ENTRIES)
+                    .putShort(SMB_FIND_FILE_BOTH_DIRECTORY_INFO)
+                    .putInt(0)
+                    .putShort((short) (SMB_FIND_CLOSE_AT_EOS | SMB_FIND_CONTINUE_FROM_LAST))
+                    .put((byte) 0);
+            try {
+                response = transaction2(TRANS2_FIND_NEXT2, params.array());
+            } catch (SmbException e) {
+                if (e.status == STATUS_NO_MORE_FILES) {
+                    break;
+                }
+                throw e;
+            }
+            paramOffset = response.word(8);
+            count += response.u16(paramOffset);
+            endOfSearch = response.u16(paramOffset + 2) != 0;
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+
+    private Response transaction2(short subcommand, byte[] params) throws IOException {
+        // Header, word count, 15 words, byte count and the (empty) transaction name, padded to a
+        // four byte boundary.
+        final int paramOffset = (SMB_HEADER_LENGTH + 1 + 30 + 2 + 1 + 3) & ~3;
+        final int dataOffset = paramOffset + params.length;
+        ByteBuffer words = words(30)
+                .putShort((short) params.length) // TotalParameterCount
+                .putShort((short) 0) // TotalDataCount
+                .putShort((short) 10) // MaxParameterCount
+                .putShort((short) Math.min(LIST_MAX_DATA, mMaxBufferSize - 256))
+                .put((byte) 0) // MaxSetupCount
+                .put((byte) 0)
+                .putShort((short) 0) // Flags
+                .putInt(0) // Timeout
+                .putShort((short) 0)
+                .putShort((short) params.length)
+                .putShort((short) paramOffset)
+                .putShort((short) 0) // DataCount
+                .putShort((short) dataOffset)
+                .put((byte) 1) // SetupCount
+                .put((byte) 0)
+                .putShort(subcommand);
+        int bytesStart = SMB_HEADER_LENGTH + 1 + 30 + 2;
+        byte[] bytes = new byte[paramOffset - bytesStart + params.length];
+        System.arraycopy(params, 0, bytes, paramOffset - bytesStart, params.length);
+        return send(SMB_COM_TRANSACTION2, words, bytes);
+    }
+
+    private static ByteBuffer words(int length) {
+        return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static byte[] strings(String... strings) {
+        StringBuilder sb = new StringBuilder();
+        for (String s : strings) {
+            sb.append(s).append('\u0000');
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private Response send(byte command, ByteBuffer words, byte[] bytes) throws IOException {
+        int length = SMB_HEADER_LENGTH + 1 + words.capacity() + 2 + bytes.length;
+        ByteBuffer msg = ByteBuffer.allocate(4 + length).order(ByteOrder.LITTLE_ENDIAN);
+        // Direct TCP transport header: zero byte followed by a 24-bit big-endian length
+        msg.put((byte) 0)
+                .put((byte) (length >>> 16))
+                .put((byte) (length >>> 8))
+                .put((byte) length);
+        msg.put((byte) 0xFF).put((byte) 'S').put((byte) 'M').put((byte) 'B')
+                .put(command)
+                .putInt(0) // Status
+                .put(SMB_FLAGS)
+                .putShort(SMB_FLAGS2)
+                .putShort((short) 0) // PIDHigh
+                .putLong(0) // SecurityFeatures
+                .putShort((short) 0)
+                .putShort((short) mTid)
+                .putShort((short) 0x5344) // PIDLow
+                .putShort((short) mUid)
+                .putShort((short) ++mMid);
+        msg.put((byte) (words.capacity() / 2))
+                .put(words.array())
+                .putShort((short) bytes.length)
+                .put(bytes);
+        mOut.write(msg.array());
+        mOut.flush();
+
+        Response response = receive();
+        if (response.message()[4] != command) {
+            throw new IOException(String.format("Unexpected response 0x%02x to command 0x%02x",
+                    response.message()[4], command));
+        }
+        if (response.status() != 0) {
+            throw new SmbException(command, response.status());
+        }
+        return response;
+    }
+
+    private Response receive() throws IOException {
+        int type = mIn.readUnsignedByte();
+        int length = mIn.readUnsignedByte() << 16 | mIn.readUnsignedShort();
+        byte[] message = new byte[length];
+        mIn.readFully(message);
+        if (type != 0 || length < SMB_HEADER_LENGTH + 3 || message[0] != (byte) 0xFF ||
+                message[1] != 'S' || message[2] != 'M' || message[3] != 'B') {
+            throw new IOException("Malformed SMB response");
+        }
+        return new Response(message, message[SMB_HEADER_LENGTH] & 0xFF);
+    }
+}
@@ -0,0 +1,198 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import org.filesys.server.filesys.AccessMode;
+import org.filesys.server.filesys.DiskDeviceContext;
+import org.filesys.server.filesys.DiskSharedDevice;
+import org.filesys.server.filesys.FileAction;
+import org.filesys.server.filesys.FileAttribute;
+import org.filesys.server.filesys.FileOpenParams;
+import org.filesys.server.filesys.NetworkFile;
+import org.filesys.server.filesys.TreeConnection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.extensions.config.element.GenericConfigElement;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Tests {@link WriteBehindCache} on its own and as used by {@link SimbaDiskDriver}.
+ */
+public class WriteBehindCacheTest {
+    private static final String SHARE_NAME = "Test";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CHUNK_SIZE = 4096;
+
+    private Path mRoot;
+    private SimbaDiskDriver mDriver;
+    private TreeConnection mTree;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = Files.createTempDirectory("simbadroid-writebehind");
+        mDriver = new SimbaDiskDriver(
+                new AdaptiveMemoryPoolPolicy(AdaptiveMemoryPoolPolicy.Mode.FIXED),
+                new JvmFileSystemProbe());
+        mDriver.setWriteBehindBufferSize(BUFFER_SIZE);
+        final GenericConfigElement driverConfig = new GenericConfigElement("driver");
+        final GenericConfigElement localPathConfig = new GenericConfigElement("LocalPath");
+        localPathConfig.setValue(mRoot.toAbsolutePath().toString());
+        driverConfig.addChild(localPathConfig);
+        DiskDeviceContext context =
+                (DiskDeviceContext) mDriver.createContext(SHARE_NAME, driverConfig);
+        context.setShareName(SHARE_NAME);
+        context.setConfigurationParameters(driverConfig);
+        context.enableChangeHandler(false);
+        DiskSharedDevice diskDev = new DiskSharedDevice(SHARE_NAME, mDriver, context);
+        context.startFilesystem(diskDev);
+        mTree = new TreeConnection(diskDev);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mRoot != null) {
+            TestFiles.deleteRecursively(mRoot);
+        }
+    }
+
+    @Test
+    public void coalescesAdjacentWrites() throws Exception {
+        NetworkFile file = createFile("\\coalesce.bin");
+        try {
+            long flushes = WriteBehindCache.getStats().flushes();
+            int chunks = BUFFER_SIZE / CHUNK_SIZE;
+            for (int i = 0; i < chunks - 1; i++) {
+                write(file, i);
+            }
+            assertEquals(0, Files.size(mRoot.resolve("coalesce.bin")));
+
+            write(file, chunks - 1);
+            assertEquals(flushes + 1, WriteBehindCache.getStats().flushes());
+            assertArrayEquals(expected(chunks), Files.readAllBytes(mRoot.resolve("coalesce.bin")));
+        } finally {
+            mDriver.closeFile(null, mTree, file);
+        }
+    }
+
+    @Test
+    public void flushesBeforeRead() throws Exception {
+        NetworkFile file = createFile("\\read.bin");
+        try {
+            write(file, 0);
+            write(file, 1);
+
+            byte[] buf = new byte[2 * CHUNK_SIZE];
+            assertEquals(buf.length, mDriver.readFile(null, mTree, file, buf, 0, buf.length, 0));
+            assertArrayEquals(expected(2), buf);
+        } finally {
+            mDriver.closeFile(null, mTree, file);
+        }
+    }
+
+    @Test
+    public void flushesBeforeRename() throws Exception {
+        NetworkFile file = createFile("\\old.bin");
+        try {
+            write(file, 0);
+            write(file, 1);
+
+            mDriver.renameFile(null, mTree, "\\old.bin", "\\new.bin", file);
+            assertArrayEquals(expected(2), Files.readAllBytes(mRoot.resolve("new.bin")));
+        } finally {
+            mDriver.closeFile(null, mTree, file);
+        }
+    }
+
+    @Test
+    public void flushesBeforeTruncate() throws Exception {
+        NetworkFile file = createFile("\\truncate.bin");
+        try {
+            write(file, 0);
+            write(file, 1);
+            write(file, 2);
+
+            mDriver.truncateFile(null, mTree, file, CHUNK_SIZE);
+            // Buffered data written out after truncating would extend the file again.
+            assertArrayEquals(expected(1), Files.readAllBytes(mRoot.resolve("truncate.bin")));
+        } finally {
+            mDriver.closeFile(null, mTree, file);
+        }
+        assertEquals(CHUNK_SIZE, Files.size(mRoot.resolve("truncate.bin")));
+    }
+
+    @Test
+    public void reportsErrorsToTheFlushingOperation() throws Exception {
+        NetworkFile file = createFile("\\error.bin");
+        try {
+            WriteBehindCache cache = new WriteBehindCache(BUFFER_SIZE);
+            byte[] chunk = chunk(0);
+            assertTrue(cache.write(file, chunk, 0, chunk.length, 0,
+                    (buf, bufPos, len, filePos) -> {
+                        throw new IOException("Disk full");
+                    }));
+
+            IOException e = assertThrows(IOException.class, () -> cache.flush(file));
+            assertEquals("Disk full", e.getMessage());
+            // The failed data is dropped, not retried by the next flush.
+            cache.flush(file);
+
+            int[] written = new int[1];
+            assertTrue(cache.write(file, chunk, 0, chunk.length, 0,
+                    (buf, bufPos, len, filePos) -> written[0] += len));
+            cache.flush(file);
+            assertEquals(CHUNK_SIZE, written[0]);
+        } finally {
+            mDriver.closeFile(null, mTree, file);
+        }
+    }
+
+    @Test
+    public void reportsShortWrites() throws Exception {
+        NetworkFile file = createFile("\\short.bin");
+        try {
+            WriteBehindCache cache = new WriteBehindCache(BUFFER_SIZE);
+            byte[] chunk = chunk(0);
+            assertTrue(cache.write(file, chunk, 0, chunk.length, 0,
+                    (buf, bufPos, len, filePos) -> 0));
+            assertThrows(IOException.class, () -> cache.flush(file));
+        } finally {
+            mDriver.closeFile(null, mTree, file);
+        }
+    }
+
+    private NetworkFile createFile(String path) throws IOException {
+        return mDriver.createFile(null, mTree, new FileOpenParams(path,
+                FileAction.NTOverwriteIf, AccessMode.ReadWrite, FileAttribute.NTNormal, 0));
+    }
+
+    private void write(NetworkFile file, int index) throws IOException {
+        byte[] chunk = chunk(index);
+        mDriver.writeFile(null, mTree, file, chunk, 0, chunk.length, (long) index * CHUNK_SIZE);
+    }
+
+    private static byte[] chunk(int index) {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        Arrays.fill(chunk, (byte) (index + 1));
+        return chunk;
+    }
+
+    private static byte[] expected(int chunks) {
+        byte[] data = new byte[chunks * CHUNK_SIZE];
+        for (int i = 0; i < chunks; i++) {
+            Arrays.fill(data, i * CHUNK_SIZE, (i + 1) * CHUNK_SIZE, (byte) (i + 1));
+        }
+        return data;
+    }
+}